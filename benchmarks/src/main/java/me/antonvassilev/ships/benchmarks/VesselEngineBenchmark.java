@@ -0,0 +1,148 @@
+package me.antonvassilev.ships.benchmarks;
+
+import me.antonvassilev.ships.BlockWriteEngine;
+import me.antonvassilev.ships.Hull;
+import me.antonvassilev.ships.HullPlanner;
+import me.antonvassilev.ships.MemoryBlockAccess;
+import me.antonvassilev.ships.MovePlanner;
+import me.antonvassilev.ships.RotationCache;
+import me.antonvassilev.ships.VesselDiscovery;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.StairBlock;
+import net.minecraft.world.level.block.state.BlockState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks discovery, translation, rotation and block state rotation of a generated
+ * hull in a MemoryBlockAccess, for hull sizes up to Vessel.MAX_VESSEL_SZ.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VesselEngineBenchmark {
+    private static final int SHIP_Y = 64;
+    // Hulls are generated as layers of this footprint, stacked until the size is reached.
+    private static final int SHIP_LENGTH = 40;
+    private static final int SHIP_WIDTH = 10;
+
+    @Param({"100", "1000", "2500", "5000"})
+    public int hullSize;
+
+    private MemoryBlockAccess world;
+    private Hull hull;
+    private RotationCache rotationCache;
+    private int originX;
+
+    @Setup(Level.Trial)
+    public void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    @Setup(Level.Iteration)
+    public void buildShip() {
+        world = new MemoryBlockAccess(-64, 320);
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState stairs = Blocks.OAK_STAIRS.defaultBlockState().setValue(StairBlock.FACING, Direction.NORTH);
+        BlockState fence = Blocks.OAK_FENCE.defaultBlockState();
+        BlockState rail = Blocks.RAIL.defaultBlockState();
+        BlockState torch = Blocks.WALL_TORCH.defaultBlockState();
+        BlockState log = Blocks.OAK_LOG.defaultBlockState();
+
+        int placed = 0;
+        for (int y = 0; placed < hullSize; y++) {
+            for (int x = 0; x < SHIP_LENGTH && placed < hullSize; x++) {
+                for (int z = 0; z < SHIP_WIDTH && placed < hullSize; z++) {
+                    BlockState state = planks;
+                    if (placed % 7 == 3) {
+                        state = stairs;
+                    } else if (placed % 11 == 5) {
+                        state = fence;
+                    } else if (placed % 13 == 6) {
+                        state = rail;
+                    } else if (placed % 17 == 8) {
+                        state = torch;
+                    } else if (placed % 5 == 1) {
+                        state = log;
+                    }
+                    world.setBlockState(x, SHIP_Y + y, z, state);
+                    placed++;
+                }
+            }
+        }
+        world.setBlockState(0, SHIP_Y, 0, Blocks.OAK_SIGN.defaultBlockState());
+
+        VesselDiscovery.Result found = discover();
+        hull = new Hull();
+        for (int i = 0; i < found.size(); i++) {
+            long position = found.getPosition(i);
+            hull.add(BlockPos.getX(position), BlockPos.getY(position) - SHIP_Y, BlockPos.getZ(position),
+                    found.getState(i));
+        }
+        rotationCache = new RotationCache(RotationCache.DEFAULT_CAPACITY);
+        originX = 0;
+    }
+
+    private VesselDiscovery.Result discover() {
+        return new VesselDiscovery(world, 0, SHIP_Y, 0, 5000).scan();
+    }
+
+    @Benchmark
+    public VesselDiscovery.Result discoverVesselFromLicense() {
+        return discover();
+    }
+
+    @Benchmark
+    public int moveBlocks() {
+        originX++;
+        BlockWriteEngine engine = new BlockWriteEngine(world);
+        HullPlanner.queueDifferentialMove(engine, hull, originX, SHIP_Y, 0, 1, 0, 0);
+        return engine.commit();
+    }
+
+    @Benchmark
+    public int moveBlocksFullRewrite() {
+        originX++;
+        BlockWriteEngine engine = new BlockWriteEngine(world);
+        HullPlanner.queueFullMove(engine, hull, originX, SHIP_Y, 0, 1, 0, 0);
+        return engine.commit();
+    }
+
+    // Same steps as a turn in game: planned from a snapshot, installed in the hull, and
+    // written. MovePlanner isn't configured, so the plan is made on this thread.
+    @Benchmark
+    public int rotateVessel() {
+        MovePlanner.RotationPlan plan = MovePlanner.planRotation(new BlockWriteEngine(world), hull.snapshot(),
+                originX, SHIP_Y, 0, 1, state -> rotationCache.rotate(state, true)).join();
+        hull.applyRotation(plan);
+        return plan.getEngine().commit();
+    }
+
+    @Benchmark
+    public void rotateBlockTexture(Blackhole blackhole) {
+        for (int i = 0; i < hull.size(); i++) {
+            blackhole.consume(rotationCache.rotate(hull.getState(i), true));
+        }
+    }
+}
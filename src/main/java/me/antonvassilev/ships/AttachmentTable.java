@@ -0,0 +1,135 @@
+package me.antonvassilev.ships;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.Bisected;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Directional;
+import org.bukkit.block.data.FaceAttachable;
+import org.bukkit.block.data.type.Bed;
+import org.bukkit.block.data.type.Cocoa;
+import org.bukkit.block.data.type.Door;
+import org.bukkit.block.data.type.Ladder;
+import org.bukkit.block.data.type.Lantern;
+import org.bukkit.block.data.type.TripwireHook;
+
+/**
+ * Per-Material table of how blocks hang on their neighbours, used to place a hull so
+ * that every block's support is written before the block itself. Each material is
+ * classified once, the first time it is seen, and support() then works out from the
+ * block data which neighbour holds the block up.
+ */
+public final class AttachmentTable {
+    /** The block stands on its own. */
+    public static final int FREE_STANDING = -2;
+    /** The block needs a neighbour, but which one can't be told from its data (vines). */
+    public static final int LOOSE = -1;
+    /** Neighbours a support() result between 0 and 5 refers to. */
+    public static final BlockFace[] SUPPORT_FACES = {
+            BlockFace.DOWN, BlockFace.UP, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.WEST, BlockFace.EAST
+    };
+
+    private static final byte UNKNOWN = 0;
+    private static final byte SOLID = 1;
+    // Stands on the block below: rails, carpets, flowers, standing torches and signs, doors.
+    private static final byte FLOOR = 2;
+    // Hangs on the block behind it: wall torches, signs and banners, ladders, tripwire hooks.
+    private static final byte WALL = 3;
+    // Buttons and levers, on the floor, the ceiling or a wall.
+    private static final byte FACE_ATTACHED = 4;
+    private static final byte LANTERN = 5;
+    // Attached to the block it faces.
+    private static final byte COCOA = 6;
+    // The head of a bed hangs on its foot.
+    private static final byte BED = 7;
+    private static final byte MULTI_FACE = 8;
+
+    // Material ordinal -> class, filled in as materials are first seen. Racing threads
+    // can only ever write the same value.
+    private static final byte[] kinds = new byte[Material.values().length];
+
+    private AttachmentTable() {
+    }
+
+    /**
+     * @return FREE_STANDING, LOOSE, or the index in SUPPORT_FACES of the neighbour the
+     * block hangs on
+     */
+    public static int support(BlockData data) {
+        switch (kind(data)) {
+            case FLOOR:
+                return faceIndex(BlockFace.DOWN);
+            case WALL:
+                return faceIndex(((Directional) data).getFacing().getOppositeFace());
+            case FACE_ATTACHED:
+                switch (((FaceAttachable) data).getAttachedFace()) {
+                    case FLOOR:
+                        return faceIndex(BlockFace.DOWN);
+                    case CEILING:
+                        return faceIndex(BlockFace.UP);
+                    default:
+                        return faceIndex(((Directional) data).getFacing().getOppositeFace());
+                }
+            case LANTERN:
+                return faceIndex(((Lantern) data).isHanging() ? BlockFace.UP : BlockFace.DOWN);
+            case COCOA:
+                return faceIndex(((Directional) data).getFacing());
+            case BED:
+                Bed bed = (Bed) data;
+                return bed.getPart() == Bed.Part.HEAD ? faceIndex(bed.getFacing().getOppositeFace()) : FREE_STANDING;
+            case MULTI_FACE:
+                return LOOSE;
+            default:
+                return FREE_STANDING;
+        }
+    }
+
+    private static byte kind(BlockData data) {
+        Material material = data.getMaterial();
+        byte kind = kinds[material.ordinal()];
+        if (kind == UNKNOWN) {
+            kind = classify(material, data);
+            kinds[material.ordinal()] = kind;
+        }
+        return kind;
+    }
+
+    private static byte classify(Material material, BlockData data) {
+        if (data instanceof Bed) {
+            return BED;
+        }
+        if (data instanceof FaceAttachable && data instanceof Directional && !material.isSolid()) {
+            return FACE_ATTACHED;
+        }
+        if (data instanceof Lantern) {
+            return LANTERN;
+        }
+        if (data instanceof Cocoa) {
+            return COCOA;
+        }
+        if (material == Material.VINE || material == Material.GLOW_LICHEN) {
+            return MULTI_FACE;
+        }
+        if (data instanceof Directional && (data instanceof Ladder || data instanceof TripwireHook ||
+                material.name().contains("WALL_"))) {
+            return WALL;
+        }
+        if (data instanceof Door || (data instanceof Bisected && !material.isSolid())) {
+            // Both halves stand on the block below; for the upper half that's the lower one.
+            return FLOOR;
+        }
+        if (!material.isSolid() && !material.isAir()) {
+            return FLOOR;
+        }
+        return SOLID;
+    }
+
+    private static int faceIndex(BlockFace face) {
+        for (int i = 0; i < SUPPORT_FACES.length; i++) {
+            if (SUPPORT_FACES[i] == face) {
+                return i;
+            }
+        }
+        return LOOSE;
+    }
+}
@@ -0,0 +1,27 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * Reads block states by world position. The vessel engine (discovery, collision checks,
+ * the heightmap and move planning) only goes through this interface, so it can run
+ * against a loaded level, chunk snapshots or an in-memory world without a server. Writes
+ * go through a WritableBlockAccess.
+ */
+public interface BlockAccess {
+    /**
+     * @return the block state at the position, or null if the position isn't available
+     * (unloaded chunk or outside the build height)
+     */
+    BlockState getBlockState(int x, int y, int z);
+
+    /**
+     * @return lowest y that can hold a block
+     */
+    int getMinY();
+
+    /**
+     * @return one above the highest y that can hold a block
+     */
+    int getMaxY();
+}
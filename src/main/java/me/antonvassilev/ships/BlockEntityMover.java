@@ -0,0 +1,130 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.Container;
+import net.minecraft.world.Containers;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_18_R2.CraftWorld;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Carries block entities (container contents, sign text, furnace progress) along with
+ * their blocks by reference. Before a move the live block entities of the hull are taken
+ * out of their chunks, the block writes then only deal with block states, and once the
+ * hull is in place each block entity gets its new position and is put back into the
+ * chunk it landed in. The block entities themselves are never copied. While they are out
+ * of the world their data is only on disk as part of the move's begin record in the
+ * MoveJournal, which puts it back should the server stop before they are attached.
+ */
+public final class BlockEntityMover {
+    // BlockEntity.worldPosition is final and is looked up by type, as field names depend
+    // on the server mappings. Null if it can't be found, in which case block entities are
+    // copied through NBT instead.
+    private static final Field POSITION_FIELD = findPositionField();
+
+    private BlockEntityMover() {
+    }
+
+    /**
+     * Takes the block entities of the hull out of the world, where the vessel is now.
+     *
+     * @param world   World
+     * @param hull    Hull
+     * @param originX int world x of the vessel origin
+     * @return hull index -> detached block entity
+     */
+    public static Int2ObjectMap<BlockEntity> detach(World world, Hull hull, int originX, int originY, int originZ) {
+        ServerLevel level = ((CraftWorld) world).getHandle();
+        Int2ObjectOpenHashMap<BlockEntity> detached = new Int2ObjectOpenHashMap<>();
+        for (int i = 0; i < hull.size(); i++) {
+            if (!hull.getState(i).hasBlockEntity()) {
+                continue;
+            }
+            BlockPos pos = new BlockPos(originX + hull.getX(i), originY + hull.getY(i), originZ + hull.getZ(i));
+            LevelChunk chunk = level.getChunkAt(pos);
+            BlockEntity entity = chunk.getBlockEntities().get(pos);
+            if (entity != null) {
+                chunk.removeBlockEntity(pos);
+                detached.put(i, entity);
+            }
+        }
+        return detached;
+    }
+
+    /**
+     * Puts detached block entities back at the current position of their hull block. Has
+     * to be called once the block writes of the move are committed. Should a block not be
+     * in place, its container contents are dropped rather than lost.
+     *
+     * @param world    World
+     * @param hull     Hull
+     * @param detached hull index -> block entity, as returned by detach
+     * @param originX  int world x of the vessel origin
+     * @return number of block entities put back
+     */
+    public static int attach(World world, Hull hull, Int2ObjectMap<BlockEntity> detached,
+                             int originX, int originY, int originZ) {
+        ServerLevel level = ((CraftWorld) world).getHandle();
+        int attached = 0;
+        for (Int2ObjectMap.Entry<BlockEntity> entry : detached.int2ObjectEntrySet()) {
+            int i = entry.getIntKey();
+            BlockEntity entity = entry.getValue();
+            BlockPos pos = new BlockPos(originX + hull.getX(i), originY + hull.getY(i), originZ + hull.getZ(i));
+            LevelChunk chunk = level.getChunkAt(pos);
+            BlockState state = chunk.getBlockState(pos);
+            if (!entity.getType().isValid(state)) {
+                if (entity instanceof Container) {
+                    Containers.dropContents(level, pos, (Container) entity);
+                }
+                continue;
+            }
+            BlockEntity relocated = relocate(entity, pos, state);
+            if (relocated == null) {
+                continue;
+            }
+            // Replaces the empty block entity the block write created.
+            chunk.addAndRegisterBlockEntity(relocated);
+            // The write may have gone out to clients ticks ago with that empty block entity.
+            level.getChunkSource().blockChanged(pos);
+            attached++;
+        }
+        return attached;
+    }
+
+    private static BlockEntity relocate(BlockEntity entity, BlockPos pos, BlockState state) {
+        if (POSITION_FIELD != null) {
+            try {
+                POSITION_FIELD.set(entity, pos);
+                entity.setBlockState(state);
+                return entity;
+            } catch (IllegalAccessException e) {
+                Bukkit.getLogger().severe(e.toString());
+            }
+        }
+        return BlockEntity.loadStatic(pos, state, entity.saveWithFullMetadata());
+    }
+
+    private static Field findPositionField() {
+        for (Field field : BlockEntity.class.getDeclaredFields()) {
+            if (field.getType() == BlockPos.class && !Modifier.isStatic(field.getModifiers())) {
+                try {
+                    field.setAccessible(true);
+                    return field;
+                } catch (RuntimeException e) {
+                    Bukkit.getLogger().severe(e.toString());
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+}
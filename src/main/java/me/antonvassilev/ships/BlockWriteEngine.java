@@ -0,0 +1,318 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.protocol.game.ClientboundSectionBlocksUpdatePacket;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.level.ThreadedLevelLightEngine;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.levelgen.Heightmap;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_18_R2.CraftWorld;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Batches block writes by chunk section and applies them directly to the level chunk
+ * sections. Compared to writing through CraftBlockState.update, this skips the per-block
+ * chunk lookup, physics and neighbour updates. Chunks are marked dirty once. The changed
+ * positions are collected per section and sent once the last queued write is committed,
+ * as one section update packet per section to the players tracking its chunk, so a
+ * move spread over several ticks still reaches clients as a single update. Light checks
+ * are deferred the same way and handed to the LightingQueue.
+ *
+ * An engine can also write to a WritableBlockAccess instead of a level, which runs the
+ * same queueing without a server and simply sets each block on commit.
+ */
+public class BlockWriteEngine {
+    public static final BlockState AIR = Blocks.AIR.defaultBlockState();
+
+    // Block entities need their lifecycle handled by the level, so those writes take the
+    // regular setBlock path without neighbour or shape updates.
+    private static final int BLOCK_ENTITY_WRITE_FLAGS = Block.UPDATE_CLIENTS | Block.UPDATE_KNOWN_SHAPE;
+
+    private static final Heightmap.Types[] HEIGHTMAP_TYPES = {
+            Heightmap.Types.MOTION_BLOCKING,
+            Heightmap.Types.MOTION_BLOCKING_NO_LEAVES,
+            Heightmap.Types.OCEAN_FLOOR,
+            Heightmap.Types.WORLD_SURFACE
+    };
+
+    private final ServerLevel level;
+    // Set instead of level when writing to a WritableBlockAccess.
+    private final WritableBlockAccess target;
+    private final int minY;
+    private final int maxY;
+    // Section key -> (section relative index -> state). Later writes to the same position
+    // replace earlier ones, so clearing a hull and rewriting it costs one write per cell.
+    private final Long2ObjectLinkedOpenHashMap<Short2ObjectLinkedOpenHashMap<BlockState>> sections =
+            new Long2ObjectLinkedOpenHashMap<>();
+    private int queued = 0;
+    // Section key -> positions changed by committed writes that clients haven't been sent.
+    private final Long2ObjectOpenHashMap<ShortSet> unsent = new Long2ObjectOpenHashMap<>();
+    // Section key -> positions whose light properties changed, relit once all writes are in.
+    private Long2ObjectOpenHashMap<ShortSet> unlit = new Long2ObjectOpenHashMap<>();
+
+    public BlockWriteEngine(World world) {
+        this.level = ((CraftWorld) world).getHandle();
+        this.target = null;
+        this.minY = level.getMinBuildHeight();
+        this.maxY = level.getMaxBuildHeight();
+    }
+
+    public BlockWriteEngine(WritableBlockAccess target) {
+        this.level = null;
+        this.target = target;
+        this.minY = target.getMinY();
+        this.maxY = target.getMaxY();
+    }
+
+    /**
+     * Queues a block state to be written at the given position.
+     *
+     * @param x     int world x
+     * @param y     int world y
+     * @param z     int world z
+     * @param state BlockState the NMS block state to write
+     */
+    public void queue(int x, int y, int z, BlockState state) {
+        if (y < minY || y >= maxY) {
+            return;
+        }
+        long sectionKey = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        Short2ObjectLinkedOpenHashMap<BlockState> writes = sections.get(sectionKey);
+        if (writes == null) {
+            writes = new Short2ObjectLinkedOpenHashMap<>();
+            sections.put(sectionKey, writes);
+        }
+        if (writes.put(toSectionIndex(x, y, z), state) == null) {
+            queued++;
+        }
+    }
+
+    /**
+     * Queues air at the given position.
+     */
+    public void clear(int x, int y, int z) {
+        queue(x, y, z, AIR);
+    }
+
+    /**
+     * @return number of distinct positions waiting to be written
+     */
+    public int size() {
+        return queued;
+    }
+
+    /**
+     * @return true if no writes are waiting
+     */
+    public boolean isEmpty() {
+        return queued == 0;
+    }
+
+    /**
+     * Writes every queued state into the world, one chunk section at a time.
+     *
+     * @return number of queued positions processed
+     */
+    public int commit() {
+        return commit(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes up to limit queued positions into the world, one chunk section at a time.
+     * Anything past the limit stays queued for the next call, in the same order.
+     *
+     * @param limit int maximum number of queued positions to process
+     * @return number of queued positions processed
+     */
+    public int commit(int limit) {
+        if (target != null) {
+            return commitTo(target, limit);
+        }
+        ServerChunkCache chunkSource = level.getChunkSource();
+        ThreadedLevelLightEngine lightEngine = chunkSource.getLightEngine();
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        int processed = 0;
+
+        ObjectIterator<Long2ObjectMap.Entry<Short2ObjectLinkedOpenHashMap<BlockState>>> sectionIt =
+                sections.long2ObjectEntrySet().fastIterator();
+        while (sectionIt.hasNext() && processed < limit) {
+            Long2ObjectMap.Entry<Short2ObjectLinkedOpenHashMap<BlockState>> entry = sectionIt.next();
+            long sectionKey = entry.getLongKey();
+            int sectionX = SectionPos.x(sectionKey);
+            int sectionY = SectionPos.y(sectionKey);
+            int sectionZ = SectionPos.z(sectionKey);
+
+            LevelChunk chunk = level.getChunk(sectionX, sectionZ);
+            LevelChunkSection section = chunk.getSection(chunk.getSectionIndexFromSectionY(sectionY));
+            boolean wasEmpty = section.hasOnlyAir();
+            boolean changed = false;
+
+            ObjectIterator<Short2ObjectMap.Entry<BlockState>> writeIt =
+                    entry.getValue().short2ObjectEntrySet().fastIterator();
+            while (writeIt.hasNext() && processed < limit) {
+                Short2ObjectMap.Entry<BlockState> write = writeIt.next();
+                short index = write.getShortKey();
+                BlockState state = write.getValue();
+                writeIt.remove();
+                processed++;
+
+                int localX = (index >> 8) & 15;
+                int localZ = (index >> 4) & 15;
+                int localY = index & 15;
+                pos.set((sectionX << 4) + localX, (sectionY << 4) + localY, (sectionZ << 4) + localZ);
+
+                BlockState old = section.getBlockState(localX, localY, localZ);
+                if (old == state) {
+                    continue;
+                }
+                if (old.hasBlockEntity() || state.hasBlockEntity()) {
+                    BlockPos blockPos = pos.immutable();
+                    if (old.hasBlockEntity() && !old.is(state.getBlock())) {
+                        // Removed first, as CraftBlock.setTypeAndData does, so the old
+                        // block's onRemove finds nothing to drop. The vessel carries the
+                        // contents to their new position itself.
+                        level.removeBlockEntity(blockPos);
+                    }
+                    level.setBlock(blockPos, state, BLOCK_ENTITY_WRITE_FLAGS);
+                    continue;
+                }
+
+                section.setBlockState(localX, localY, localZ, state, false);
+                for (Heightmap.Types type : HEIGHTMAP_TYPES) {
+                    chunk.getOrCreateHeightmapUnprimed(type).update(localX, pos.getY(), localZ, state);
+                }
+                // Same test Level.setBlock uses to decide whether a block needs relighting.
+                if (old.getLightBlock(level, pos) != state.getLightBlock(level, pos) ||
+                        old.getLightEmission() != state.getLightEmission() ||
+                        old.useShapeForLightOcclusion() ||
+                        state.useShapeForLightOcclusion()) {
+                    positions(unlit, sectionKey).add(index);
+                }
+                positions(unsent, sectionKey).add(index);
+                changed = true;
+            }
+
+            if (changed) {
+                boolean isEmpty = section.hasOnlyAir();
+                if (wasEmpty != isEmpty) {
+                    lightEngine.updateSectionStatus(SectionPos.of(sectionX, sectionY, sectionZ), isEmpty);
+                }
+                chunk.setUnsaved(true);
+            }
+            if (entry.getValue().isEmpty()) {
+                sectionIt.remove();
+            }
+        }
+
+        queued -= processed;
+        if (queued == 0) {
+            sendUpdates();
+            LightingQueue.submit(level, unlit);
+            unlit = new Long2ObjectOpenHashMap<>();
+        }
+        return processed;
+    }
+
+    private static ShortSet positions(Long2ObjectOpenHashMap<ShortSet> sections, long sectionKey) {
+        ShortSet positions = sections.get(sectionKey);
+        if (positions == null) {
+            positions = new ShortOpenHashSet();
+            sections.put(sectionKey, positions);
+        }
+        return positions;
+    }
+
+    // Sends one packet per changed section to the players that have its chunk loaded.
+    private void sendUpdates() {
+        sendSections(level, unsent, player -> true);
+        unsent.clear();
+    }
+
+    /**
+     * Sends the current contents of the given section positions as one section update
+     * packet per section. Players that don't track a section's chunk get nothing.
+     *
+     * @param level     ServerLevel
+     * @param sections  section key -> section relative positions to send
+     * @param receivers Predicate picks which of the tracking players receive the packets
+     * @return number of packets sent
+     */
+    public static int sendSections(ServerLevel level, Long2ObjectMap<ShortSet> sections,
+                                   Predicate<ServerPlayer> receivers) {
+        int sent = 0;
+        ObjectIterator<Long2ObjectMap.Entry<ShortSet>> it = sections.long2ObjectEntrySet().iterator();
+        while (it.hasNext()) {
+            Long2ObjectMap.Entry<ShortSet> entry = it.next();
+            long sectionKey = entry.getLongKey();
+            ChunkPos chunkPos = new ChunkPos(SectionPos.x(sectionKey), SectionPos.z(sectionKey));
+            List<ServerPlayer> players = level.getChunkSource().chunkMap.getPlayers(chunkPos, false);
+            if (players.isEmpty()) {
+                continue;
+            }
+            LevelChunk chunk = level.getChunkSource().getChunkNow(chunkPos.x, chunkPos.z);
+            if (chunk == null) {
+                continue;
+            }
+            LevelChunkSection section = chunk.getSection(chunk.getSectionIndexFromSectionY(SectionPos.y(sectionKey)));
+            ClientboundSectionBlocksUpdatePacket packet = new ClientboundSectionBlocksUpdatePacket(
+                    SectionPos.of(sectionKey), entry.getValue(), section, false);
+            for (ServerPlayer player : players) {
+                if (receivers.test(player)) {
+                    player.connection.send(packet);
+                    sent++;
+                }
+            }
+        }
+        return sent;
+    }
+
+    private int commitTo(WritableBlockAccess target, int limit) {
+        int processed = 0;
+        ObjectIterator<Long2ObjectMap.Entry<Short2ObjectLinkedOpenHashMap<BlockState>>> sectionIt =
+                sections.long2ObjectEntrySet().fastIterator();
+        while (sectionIt.hasNext() && processed < limit) {
+            Long2ObjectMap.Entry<Short2ObjectLinkedOpenHashMap<BlockState>> entry = sectionIt.next();
+            long sectionKey = entry.getLongKey();
+            ObjectIterator<Short2ObjectMap.Entry<BlockState>> writeIt =
+                    entry.getValue().short2ObjectEntrySet().fastIterator();
+            while (writeIt.hasNext() && processed < limit) {
+                Short2ObjectMap.Entry<BlockState> write = writeIt.next();
+                short index = write.getShortKey();
+                target.setBlockState((SectionPos.x(sectionKey) << 4) + ((index >> 8) & 15),
+                        (SectionPos.y(sectionKey) << 4) + (index & 15),
+                        (SectionPos.z(sectionKey) << 4) + ((index >> 4) & 15),
+                        write.getValue());
+                writeIt.remove();
+                processed++;
+            }
+            if (entry.getValue().isEmpty()) {
+                sectionIt.remove();
+            }
+        }
+        queued -= processed;
+        return processed;
+    }
+
+    private static short toSectionIndex(int x, int y, int z) {
+        return (short) (((x & 15) << 8) | ((z & 15) << 4) | (y & 15));
+    }
+}
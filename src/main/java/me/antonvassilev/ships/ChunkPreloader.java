@@ -0,0 +1,139 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.world.level.ChunkPos;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Keeps the chunks a sailing vessel occupies and heads into loaded, so that neither its
+ * moves nor its collision checks load chunks on the main thread, and the chunks it is
+ * still in can't unload under it. Chunks ahead of the vessel are loaded asynchronously
+ * and, like the chunks it occupies, held with a plugin chunk ticket. Tickets are only
+ * ever added to loaded chunks and are released as soon as the vessel has passed.
+ *
+ * Chunks are worked out from the vessel's chunk footprint swept along its heading, so
+ * they never depend on the hull itself. A vessel that isn't sailing holds just the chunks
+ * of the move or turn it is writing, until the last block is in.
+ */
+public class ChunkPreloader {
+    private final Plugin owningPlugin;
+    private final World world;
+    // Chunks the vessel wants held, chunks holding its ticket, and chunks being loaded.
+    private LongOpenHashSet wanted = new LongOpenHashSet();
+    private final LongOpenHashSet ticketed = new LongOpenHashSet();
+    private final LongOpenHashSet loading = new LongOpenHashSet();
+
+    public ChunkPreloader(Plugin owningPlugin, World world) {
+        this.owningPlugin = owningPlugin;
+        this.world = world;
+    }
+
+    /**
+     * Holds the chunks the footprint covers anywhere between from and to blocks along the
+     * heading, loading those that aren't loaded yet, and releases all others.
+     *
+     * @param footprint LongSet chunks the hull covers at the vessel origin
+     * @param dx        int heading along x, -1, 0 or 1
+     * @param dz        int heading along z, -1, 0 or 1
+     * @param from      int blocks along the heading the held stretch starts at, may be negative
+     * @param to        int blocks along the heading the held stretch ends at
+     */
+    public void hold(LongSet footprint, int dx, int dz, int from, int to) {
+        wanted = sweep(footprint, dx, dz, from, to);
+
+        LongIterator it = ticketed.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            if (!wanted.contains(chunk)) {
+                world.removePluginChunkTicket(ChunkPos.getX(chunk), ChunkPos.getZ(chunk), owningPlugin);
+                it.remove();
+            }
+        }
+        it = wanted.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            if (ticketed.contains(chunk) || loading.contains(chunk)) {
+                continue;
+            }
+            int chunkX = ChunkPos.getX(chunk);
+            int chunkZ = ChunkPos.getZ(chunk);
+            if (world.isChunkLoaded(chunkX, chunkZ)) {
+                addTicket(chunk);
+                continue;
+            }
+            loading.add(chunk);
+            // Completed on the main thread once the chunk is loaded.
+            world.getChunkAtAsync(chunkX, chunkZ).whenComplete((loaded, error) -> {
+                loading.remove(chunk);
+                if (error == null && wanted.contains(chunk) && !ticketed.contains(chunk)) {
+                    addTicket(chunk);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true if every chunk the footprint covers between from and to blocks along
+     * the heading is loaded
+     */
+    public boolean isLoaded(LongSet footprint, int dx, int dz, int from, int to) {
+        LongIterator it = sweep(footprint, dx, dz, from, to).iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            if (!world.isChunkLoaded(ChunkPos.getX(chunk), ChunkPos.getZ(chunk))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases every chunk held by the vessel.
+     */
+    public void release() {
+        wanted = new LongOpenHashSet();
+        LongIterator it = ticketed.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            world.removePluginChunkTicket(ChunkPos.getX(chunk), ChunkPos.getZ(chunk), owningPlugin);
+        }
+        ticketed.clear();
+    }
+
+    private void addTicket(long chunk) {
+        if (world.addPluginChunkTicket(ChunkPos.getX(chunk), ChunkPos.getZ(chunk), owningPlugin)) {
+            ticketed.add(chunk);
+        }
+    }
+
+    // Chunks the footprint covers while shifted anywhere between from and to blocks along
+    // the heading. A chunk shifted by d blocks spans the chunks from floor(d / 16) to
+    // floor((d + 15) / 16) further along.
+    private static LongOpenHashSet sweep(LongSet footprint, int dx, int dz, int from, int to) {
+        int minX = Math.min(dx * from, dx * to);
+        int maxX = Math.max(dx * from, dx * to);
+        int minZ = Math.min(dz * from, dz * to);
+        int maxZ = Math.max(dz * from, dz * to);
+        int lowX = Math.floorDiv(minX, 16);
+        int highX = Math.floorDiv(maxX + 15, 16);
+        int lowZ = Math.floorDiv(minZ, 16);
+        int highZ = Math.floorDiv(maxZ + 15, 16);
+
+        LongOpenHashSet chunks = new LongOpenHashSet(footprint.size() * (highX - lowX + 1) * (highZ - lowZ + 1));
+        LongIterator it = footprint.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            int chunkX = ChunkPos.getX(chunk);
+            int chunkZ = ChunkPos.getZ(chunk);
+            for (int x = chunkX + lowX; x <= chunkX + highX; x++) {
+                for (int z = chunkZ + lowZ; z <= chunkZ + highZ; z++) {
+                    chunks.add(ChunkPos.asLong(x, z));
+                }
+            }
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,97 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.World;
+
+/**
+ * Checks whether a hull can move or rotate without overwriting anything that isn't part
+ * of it. A translation only has to look at the leading face of the hull: the cells whose
+ * neighbour in the direction of travel isn't a hull block. Every cell the hull sweeps
+ * through lies on a ray starting at one of those, so a step of v blocks costs at most
+ * v reads per leading face cell instead of v reads per hull block.
+ *
+ * Cells that can't be read, in unloaded chunks or outside the build height, count as
+ * blocked.
+ */
+public class CollisionEngine {
+    private final BlockAccess blocks;
+
+    public CollisionEngine(World world) {
+        this(new LevelBlockAccess(world));
+    }
+
+    public CollisionEngine(BlockAccess blocks) {
+        this.blocks = blocks;
+    }
+
+    /**
+     * Works out how far the hull can travel in a straight line before it would hit a
+     * block that isn't part of it.
+     *
+     * @param hull     Hull the blocks of the vessel
+     * @param originX  int world x of the vessel origin
+     * @param originY  int world y of the vessel origin
+     * @param originZ  int world z of the vessel origin
+     * @param dx       int unit step along x
+     * @param dy       int unit step along y
+     * @param dz       int unit step along z
+     * @param distance int number of blocks the vessel wants to travel
+     * @return largest safe number of blocks, between 0 and distance
+     */
+    public int clearDistance(Hull hull, int originX, int originY, int originZ,
+                             int dx, int dy, int dz, int distance) {
+        int safe = distance;
+        for (int i = 0; i < hull.size() && safe > 0; i++) {
+            int relX = hull.getX(i);
+            int relY = hull.getY(i);
+            int relZ = hull.getZ(i);
+            if (hull.indexOf(relX + dx, relY + dy, relZ + dz) != -1) {
+                // Not on the leading face, the block ahead moves out of the way.
+                continue;
+            }
+            for (int k = 1; k <= safe; k++) {
+                int x = relX + dx * k;
+                int y = relY + dy * k;
+                int z = relZ + dz * k;
+                if (hull.indexOf(x, y, z) != -1) {
+                    // The rest of the ray is covered by the leading face behind that block.
+                    break;
+                }
+                if (!isFree(originX + x, originY + y, originZ + z)) {
+                    safe = k - 1;
+                    break;
+                }
+            }
+        }
+        return safe;
+    }
+
+    /**
+     * Checks that every cell the hull occupies after a quarter turn around its origin is
+     * either part of the hull already or free.
+     *
+     * @param sinFactor int 1 for a left turn, -1 for a right turn
+     * @return true if the rotation doesn't overwrite anything
+     */
+    public boolean canRotate(Hull hull, int originX, int originY, int originZ, int sinFactor) {
+        for (int i = 0; i < hull.size(); i++) {
+            int x = -hull.getZ(i) * sinFactor;
+            int y = hull.getY(i);
+            int z = hull.getX(i) * sinFactor;
+            if (hull.indexOf(x, y, z) == -1 && !isFree(originX + x, originY + y, originZ + z)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isFree(int x, int y, int z) {
+        return isFree(blocks.getBlockState(x, y, z));
+    }
+
+    // Air, fluids, plants and other blocks that get replaced when something is placed on
+    // them. Null, for cells that can't be read, counts as blocked.
+    static boolean isFree(BlockState state) {
+        return state != null && (state.isAir() || state.getMaterial().isReplaceable());
+    }
+}
@@ -1,21 +1,63 @@
 package me.antonvassilev.ships;
 
+import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.plugin.Plugin;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.HashMap;
+
 public class CommandInfo implements CommandExecutor {
+    static final String STATS_PERMISSION = "ships.stats";
     final private Plugin m_plugin;
+    final private HashMap<String, Vessel> m_vessels;
+    final private VesselFleet m_fleet;
 
-    CommandInfo(Plugin plugin) {
+    CommandInfo(Plugin plugin, HashMap<String, Vessel> vessels, VesselFleet fleet) {
         m_plugin = plugin;
+        m_vessels = vessels;
+        m_fleet = fleet;
     }
 
+    /**
+     * Handles /info, and /info stats [vessel] which reports the recorded timings and
+     * counters, either for the whole server or for a single vessel.
+     */
     @Override
     public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+        if (args.length == 0) {
+            sender.sendMessage(m_plugin.getName() + " " + m_plugin.getDescription().getVersion() + ": "
+                    + m_fleet.getActiveCount() + " active vessels, "
+                    + m_fleet.getDormantCount() + " unloaded");
+            return true;
+        }
+        if (!args[0].equalsIgnoreCase("stats") || args.length > 2) {
+            return false;
+        }
+        if (!sender.hasPermission(STATS_PERMISSION)) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to view ship stats.");
+            return true;
+        }
 
+        ShipStats stats;
+        if (args.length == 2) {
+            Vessel vessel = m_vessels.get(args[1]);
+            if (vessel == null) {
+                sender.sendMessage(ChatColor.RED + "No loaded vessel named " + args[1]);
+                return true;
+            }
+            stats = vessel.getStats();
+            sender.sendMessage(ChatColor.GOLD + "Stats for " + vessel.getName() + " ("
+                    + vessel.getBlockCount() + " blocks)");
+        } else {
+            stats = ShipStats.global();
+            sender.sendMessage(ChatColor.GOLD + "Ship stats for all vessels");
+        }
+        for (String line : stats.report()) {
+            sender.sendMessage(line);
+        }
         return true;
     }
 }
@@ -0,0 +1,143 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.BlockPos;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_18_R2.block.data.CraftBlockData;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.FallingBlock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A vessel sailing in ghost mode. The hull's blocks are cleared once and replaced by
+ * falling block proxies without gravity, which glide a fraction of a block every tick.
+ * Nothing is written to the world while sailing; the vessel writes its blocks back in a
+ * single commit where the voyage ends.
+ */
+public class GhostVoyage {
+    private final World world;
+    private final int dx;
+    private final int dz;
+    private final List<FallingBlock> proxies = new ArrayList<>();
+    private final List<Entity> passengers;
+    // Deck height of each passenger, kept so they don't fall through the proxies.
+    private final double[] passengerY;
+    private double progress = 0;
+
+    private GhostVoyage(World world, int dx, int dz, List<Entity> passengers) {
+        this.world = world;
+        this.dx = dx;
+        this.dz = dz;
+        this.passengers = passengers;
+        this.passengerY = new double[passengers.size()];
+        for (int i = 0; i < passengers.size(); i++) {
+            passengerY[i] = passengers.get(i).getLocation().getY();
+        }
+    }
+
+    /**
+     * Clears the hull from the world and spawns a proxy for each of its blocks.
+     *
+     * @param world      World
+     * @param hull       Hull the blocks to replace with proxies
+     * @param originX    int world x of the vessel origin
+     * @param originY    int world y of the vessel origin
+     * @param originZ    int world z of the vessel origin
+     * @param dx         int unit heading along x
+     * @param dz         int unit heading along z
+     * @param passengers List of entities carried along
+     */
+    public static GhostVoyage launch(World world, Hull hull, int originX, int originY, int originZ,
+                                     int dx, int dz, List<Entity> passengers) {
+        GhostVoyage voyage = new GhostVoyage(world, dx, dz, passengers);
+        BlockWriteEngine engine = new BlockWriteEngine(world);
+        HullPlanner.queueClear(engine, hull, originX, originY, originZ);
+        engine.commit();
+        // The whole hull is left behind, so its neighbours react to the gap once.
+        LongArrayList vacated = new LongArrayList(hull.size());
+        for (int i = 0; i < hull.size(); i++) {
+            vacated.add(BlockPos.asLong(originX + hull.getX(i), originY + hull.getY(i), originZ + hull.getZ(i)));
+        }
+        PhysicsQuarantine.settleCells(world, vacated);
+
+        for (int i = 0; i < hull.size(); i++) {
+            Location location = new Location(world,
+                    originX + hull.getX(i) + 0.5,
+                    originY + hull.getY(i),
+                    originZ + hull.getZ(i) + 0.5);
+            FallingBlock proxy = world.spawnFallingBlock(location, CraftBlockData.fromData(hull.getState(i)));
+            proxy.setGravity(false);
+            proxy.setDropItem(false);
+            proxy.setHurtEntities(false);
+            proxy.setInvulnerable(true);
+            proxy.setPersistent(false);
+            voyage.proxies.add(proxy);
+        }
+        return voyage;
+    }
+
+    /**
+     * Moves the proxies and passengers further along the heading.
+     *
+     * @param blocks double distance to move, may be a fraction of a block
+     */
+    public void advance(double blocks) {
+        progress += blocks;
+        double x = dx * blocks;
+        double z = dz * blocks;
+        for (FallingBlock proxy : proxies) {
+            proxy.teleport(proxy.getLocation().add(x, 0, z));
+            // Falling blocks break into items once they've existed for too long.
+            proxy.setTicksLived(1);
+        }
+        for (int i = 0; i < passengers.size(); i++) {
+            Entity passenger = passengers.get(i);
+            if (!passenger.isValid() || passenger.getWorld() != world) {
+                continue;
+            }
+            Location location = passenger.getLocation().add(x, 0, z);
+            location.setY(passengerY[i]);
+            passenger.teleport(location);
+            passenger.setFallDistance(0);
+        }
+    }
+
+    /**
+     * @return whole blocks travelled so far
+     */
+    public int getBlocksTravelled() {
+        return (int) Math.floor(progress);
+    }
+
+    public double getProgress() {
+        return progress;
+    }
+
+    public int getDx() {
+        return dx;
+    }
+
+    public int getDz() {
+        return dz;
+    }
+
+    /**
+     * Removes the proxies and pulls the passengers back onto the last whole block, where
+     * the caller writes the hull back.
+     */
+    public void end() {
+        for (FallingBlock proxy : proxies) {
+            proxy.remove();
+        }
+        proxies.clear();
+        double overshoot = progress - getBlocksTravelled();
+        for (Entity passenger : passengers) {
+            if (passenger.isValid() && passenger.getWorld() == world) {
+                passenger.teleport(passenger.getLocation().add(-dx * overshoot, 0, -dz * overshoot));
+            }
+        }
+    }
+}
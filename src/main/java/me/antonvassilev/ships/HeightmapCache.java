@@ -0,0 +1,331 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Per-column map of the world above and below a hull, used to check climbs and descents.
+ * For every column the hull covers it keeps the nearest obstacle under the hull's lowest
+ * block (the floor), the nearest obstacle over its highest block (the ceiling) and the
+ * top of the water the column is in or over. A vertical move of any distance then costs
+ * a few array reads per column instead of a world read per cell.
+ *
+ * Columns are scanned from chunk snapshots the first time they are needed, and only
+ * stale columns are read back. A column goes stale when a block in it is placed, broken
+ * or blown up or a fluid flows into it, as reported through invalidate(), and once it is
+ * older than the refresh interval, for changes no event reports (other vessels, pistons,
+ * growth). A vertical move can't invalidate them: the cells a hull leaves are cleared,
+ * and the cells it enters were checked free. Moving sideways, turning or changing the
+ * hull starts over.
+ *
+ * Columns with an obstacle between their lowest and highest hull block (a hull built
+ * around something that isn't part of it) can't be summarised this way; clearance()
+ * reports those, and the caller falls back to the CollisionEngine.
+ */
+public class HeightmapCache {
+    /** clearance() result when the hull can't be checked from the map. */
+    public static final int UNMAPPED = -1;
+    private static final int NONE = Integer.MIN_VALUE;
+    // World id -> world column, as ChunkPos.asLong(x, z) -> caches with a hull column there.
+    private static final Map<UUID, Long2ObjectOpenHashMap<List<HeightmapCache>>> covering = new HashMap<>();
+
+    private final World world;
+    private final long refreshTicks;
+
+    // Hull the columns were built for, and the origin column they were scanned at.
+    private Hull hull = null;
+    private int hullVersion = -1;
+    private int originX;
+    private int originZ;
+    // Whether the columns at the origin above are listed in covering.
+    private boolean registered = false;
+
+    // Per hull column: relative position and extent, then the cached world heights.
+    private int columns = 0;
+    private Long2IntOpenHashMap columnOf = new Long2IntOpenHashMap();
+    private int[] relX = new int[0];
+    private int[] relZ = new int[0];
+    private int[] bottom = new int[0];
+    private int[] top = new int[0];
+    private int[] floor = new int[0];
+    private int[] ceiling = new int[0];
+    private int[] fluid = new int[0];
+    private boolean[] interiorBlocked = new boolean[0];
+    private long[] scannedAt = new long[0];
+
+    /**
+     * @param world        World
+     * @param refreshTicks long ticks after which a column is scanned again
+     */
+    public HeightmapCache(World world, long refreshTicks) {
+        this.world = world;
+        this.refreshTicks = Math.max(1, refreshTicks);
+    }
+
+    /**
+     * Works out how far the hull can travel straight up or down before it would hit a
+     * block that isn't part of it. A descent from above the water stops on its surface,
+     * as does a climb from under it; a vessel resting on the surface may go on through.
+     *
+     * @param hull        Hull the blocks of the vessel
+     * @param hullVersion int version of the hull, see Vessel.getHullVersion
+     * @param originX     int world x of the vessel origin
+     * @param originY     int world y of the vessel origin
+     * @param originZ     int world z of the vessel origin
+     * @param dy          int 1 to climb, -1 to descend
+     * @param distance    int number of blocks the vessel wants to travel
+     * @return largest safe number of blocks between 0 and distance, or UNMAPPED
+     */
+    public int clearance(Hull hull, int hullVersion, int originX, int originY, int originZ, int dy, int distance) {
+        if (hull != this.hull || hullVersion != this.hullVersion) {
+            unregister();
+            buildColumns(hull, hullVersion);
+            this.originX = originX;
+            this.originZ = originZ;
+        } else if (originX != this.originX || originZ != this.originZ) {
+            unregister();
+            Arrays.fill(scannedAt, 0, columns, Long.MIN_VALUE);
+            this.originX = originX;
+            this.originZ = originZ;
+        }
+        register();
+        refresh(originY);
+
+        int safe = distance;
+        int lowest = Integer.MAX_VALUE;
+        int waterline = NONE;
+        for (int c = 0; c < columns; c++) {
+            if (interiorBlocked[c]) {
+                return UNMAPPED;
+            }
+            if (dy < 0) {
+                safe = Math.min(safe, originY + bottom[c] - floor[c] - 1);
+            } else {
+                safe = Math.min(safe, ceiling[c] - (originY + top[c]) - 1);
+            }
+            lowest = Math.min(lowest, originY + bottom[c]);
+            waterline = Math.max(waterline, fluid[c]);
+        }
+        if (waterline != NONE) {
+            // Resting on the surface means the lowest block sits just above the water.
+            int surface = waterline + 1;
+            if (dy < 0 && lowest > surface) {
+                safe = Math.min(safe, lowest - surface);
+            } else if (dy > 0 && lowest < surface) {
+                safe = Math.min(safe, surface - lowest);
+            }
+        }
+        return Math.max(0, safe);
+    }
+
+    /**
+     * Marks the column of a block that changed as stale in every cache covering it, so it
+     * is scanned again before the next climb or descent.
+     *
+     * @param block Block that was placed, broken, blown up or flowed into
+     */
+    public static void invalidate(Block block) {
+        if (covering.isEmpty()) {
+            return;
+        }
+        Long2ObjectOpenHashMap<List<HeightmapCache>> columns = covering.get(block.getWorld().getUID());
+        if (columns == null) {
+            return;
+        }
+        List<HeightmapCache> caches = columns.get(ChunkPos.asLong(block.getX(), block.getZ()));
+        if (caches == null) {
+            return;
+        }
+        for (HeightmapCache cache : caches) {
+            int c = cache.columnOf.get(ChunkPos.asLong(block.getX() - cache.originX, block.getZ() - cache.originZ));
+            if (c != -1) {
+                cache.scannedAt[c] = Long.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Stops the cache from following block changes. Has to be called once the vessel is
+     * deactivated.
+     */
+    public void release() {
+        unregister();
+        hull = null;
+        hullVersion = -1;
+    }
+
+    private void register() {
+        if (registered) {
+            return;
+        }
+        Long2ObjectOpenHashMap<List<HeightmapCache>> byColumn =
+                covering.computeIfAbsent(world.getUID(), id -> new Long2ObjectOpenHashMap<>());
+        for (int c = 0; c < columns; c++) {
+            long column = ChunkPos.asLong(originX + relX[c], originZ + relZ[c]);
+            List<HeightmapCache> caches = byColumn.get(column);
+            if (caches == null) {
+                caches = new ArrayList<>(1);
+                byColumn.put(column, caches);
+            }
+            caches.add(this);
+        }
+        registered = true;
+    }
+
+    private void unregister() {
+        if (!registered) {
+            return;
+        }
+        Long2ObjectOpenHashMap<List<HeightmapCache>> byColumn = covering.get(world.getUID());
+        for (int c = 0; c < columns; c++) {
+            long column = ChunkPos.asLong(originX + relX[c], originZ + relZ[c]);
+            List<HeightmapCache> caches = byColumn.get(column);
+            caches.remove(this);
+            if (caches.isEmpty()) {
+                byColumn.remove(column);
+            }
+        }
+        if (byColumn.isEmpty()) {
+            covering.remove(world.getUID());
+        }
+        registered = false;
+    }
+
+    // Groups the hull into columns with their lowest and highest block.
+    private void buildColumns(Hull hull, int hullVersion) {
+        this.hull = hull;
+        this.hullVersion = hullVersion;
+        Long2IntOpenHashMap columnOf = new Long2IntOpenHashMap();
+        columnOf.defaultReturnValue(-1);
+        int[] xs = new int[16];
+        int[] zs = new int[16];
+        int[] lows = new int[16];
+        int[] highs = new int[16];
+        int count = 0;
+        for (int i = 0; i < hull.size(); i++) {
+            int x = hull.getX(i);
+            int y = hull.getY(i);
+            int z = hull.getZ(i);
+            long key = ChunkPos.asLong(x, z);
+            int c = columnOf.get(key);
+            if (c == -1) {
+                if (count == xs.length) {
+                    xs = Arrays.copyOf(xs, count * 2);
+                    zs = Arrays.copyOf(zs, count * 2);
+                    lows = Arrays.copyOf(lows, count * 2);
+                    highs = Arrays.copyOf(highs, count * 2);
+                }
+                c = count++;
+                columnOf.put(key, c);
+                xs[c] = x;
+                zs[c] = z;
+                lows[c] = y;
+                highs[c] = y;
+            } else {
+                lows[c] = Math.min(lows[c], y);
+                highs[c] = Math.max(highs[c], y);
+            }
+        }
+        columns = count;
+        this.columnOf = columnOf;
+        relX = xs;
+        relZ = zs;
+        bottom = lows;
+        top = highs;
+        floor = new int[count];
+        ceiling = new int[count];
+        fluid = new int[count];
+        interiorBlocked = new boolean[count];
+        scannedAt = new long[count];
+        Arrays.fill(scannedAt, Long.MIN_VALUE);
+    }
+
+    // Scans the columns that were never scanned or have gone stale, from snapshots of
+    // just the chunks they are in.
+    private void refresh(int originY) {
+        long now = world.getFullTime();
+        LongOpenHashSet chunks = new LongOpenHashSet();
+        for (int c = 0; c < columns; c++) {
+            if (isStale(c, now)) {
+                chunks.add(ChunkPos.asLong((originX + relX[c]) >> 4, (originZ + relZ[c]) >> 4));
+            }
+        }
+        if (chunks.isEmpty()) {
+            return;
+        }
+        SnapshotBlockAccess blocks = SnapshotBlockAccess.of(world, chunks);
+        for (int c = 0; c < columns; c++) {
+            if (isStale(c, now)) {
+                scan(blocks, c, originY);
+                scannedAt[c] = now;
+            }
+        }
+    }
+
+    private boolean isStale(int c, long now) {
+        return scannedAt[c] == Long.MIN_VALUE || now - scannedAt[c] >= refreshTicks;
+    }
+
+    private void scan(BlockAccess blocks, int c, int originY) {
+        int x = originX + relX[c];
+        int z = originZ + relZ[c];
+        int low = originY + bottom[c];
+        int high = originY + top[c];
+
+        // Down to the floor. The first cell that isn't air tells whether the column is
+        // over water.
+        floor[c] = blocks.getMinY() - 1;
+        int fluidBelow = NONE;
+        boolean overAir = true;
+        for (int y = low - 1; y >= blocks.getMinY(); y--) {
+            BlockState state = blocks.getBlockState(x, y, z);
+            if (overAir && state != null && !state.isAir()) {
+                overAir = false;
+                fluidBelow = state.getFluidState().isEmpty() ? NONE : y;
+            }
+            if (!CollisionEngine.isFree(state)) {
+                floor[c] = y;
+                break;
+            }
+        }
+
+        // Up to the ceiling, following the water the column is submerged in to its top.
+        ceiling[c] = blocks.getMaxY();
+        int fluidAbove = NONE;
+        boolean submerged = true;
+        for (int y = high + 1; y < blocks.getMaxY(); y++) {
+            BlockState state = blocks.getBlockState(x, y, z);
+            if (!CollisionEngine.isFree(state)) {
+                ceiling[c] = y;
+                break;
+            }
+            if (submerged && !state.getFluidState().isEmpty()) {
+                fluidAbove = y;
+            } else {
+                submerged = false;
+            }
+        }
+        fluid[c] = fluidAbove != NONE ? fluidAbove : fluidBelow;
+
+        interiorBlocked[c] = false;
+        for (int y = low + 1; y < high; y++) {
+            if (hull.indexOf(relX[c], y - originY, relZ[c]) == -1
+                    && !CollisionEngine.isFree(blocks.getBlockState(x, y, z))) {
+                interiorBlocked[c] = true;
+                break;
+            }
+        }
+    }
+}
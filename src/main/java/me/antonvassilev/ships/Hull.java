@@ -0,0 +1,252 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.block.BlockFace;
+import org.bukkit.craftbukkit.v1_18_R2.block.data.CraftBlockData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Packed storage for the blocks of a vessel. Positions are kept relative to the vessel
+ * origin and packed into longs the same way BlockPos.asLong does, and block states are
+ * indices into a per-hull palette. Block entities stay in the world and are carried
+ * along by the BlockEntityMover, so translating the vessel doesn't touch the hull at all
+ * and rotating it only rewrites the primitive arrays.
+ *
+ * The hull also keeps the order its blocks are placed in: free standing blocks first,
+ * then every block after the block it hangs on, as told by the AttachmentTable. The
+ * order is worked out once and only again after blocks are added or removed; a turn
+ * rotates blocks and their supports alike, so it stays valid.
+ */
+public class Hull {
+    private static final int INITIAL_CAPACITY = 64;
+    // Placement depths of blocks not worked out yet and of blocks on the chain being walked.
+    private static final int UNKNOWN_DEPTH = -1;
+    private static final int ON_CHAIN = -2;
+
+    private long[] positions = new long[INITIAL_CAPACITY];
+    private int[] stateIds = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private final ArrayList<BlockState> palette = new ArrayList<>();
+    // Palette id -> AttachmentTable.support of the state.
+    private int[] paletteSupport = new int[INITIAL_CAPACITY];
+    private final Object2IntOpenHashMap<BlockState> paletteIds = new Object2IntOpenHashMap<>();
+    private Long2IntOpenHashMap indexByPosition = new Long2IntOpenHashMap();
+    // Hull indices in placement order, null when it has to be worked out again. Replaced,
+    // never modified, so snapshots can share it.
+    private int[] placementOrder = null;
+
+    public Hull() {
+        paletteIds.defaultReturnValue(-1);
+        indexByPosition.defaultReturnValue(-1);
+    }
+
+    /**
+     * Adds a block to the hull.
+     *
+     * @param x     int x relative to the vessel origin
+     * @param y     int y relative to the vessel origin
+     * @param z     int z relative to the vessel origin
+     * @param state BlockState the NMS block state
+     * @return index of the block in the hull
+     */
+    public int add(int x, int y, int z, BlockState state) {
+        long position = BlockPos.asLong(x, y, z);
+        int existing = indexByPosition.get(position);
+        if (existing != -1) {
+            stateIds[existing] = paletteId(state);
+            placementOrder = null;
+            return existing;
+        }
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            stateIds = Arrays.copyOf(stateIds, size * 2);
+        }
+        positions[size] = position;
+        stateIds[size] = paletteId(state);
+        indexByPosition.put(position, size);
+        placementOrder = null;
+        return size++;
+    }
+
+    /**
+     * Removes the block at index. The last block takes its place, so this is O(1) but
+     * changes the index of that block.
+     */
+    public void remove(int index) {
+        indexByPosition.remove(positions[index]);
+        placementOrder = null;
+        int last = --size;
+        if (index != last) {
+            positions[index] = positions[last];
+            stateIds[index] = stateIds[last];
+            indexByPosition.put(positions[index], index);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getPosition(int index) {
+        return positions[index];
+    }
+
+    public int getX(int index) {
+        return BlockPos.getX(positions[index]);
+    }
+
+    public int getY(int index) {
+        return BlockPos.getY(positions[index]);
+    }
+
+    public int getZ(int index) {
+        return BlockPos.getZ(positions[index]);
+    }
+
+    /**
+     * @return index of the block at the relative position, or -1 if it isn't part of the hull
+     */
+    public int indexOf(int x, int y, int z) {
+        return indexByPosition.get(BlockPos.asLong(x, y, z));
+    }
+
+    public int getStateId(int index) {
+        return stateIds[index];
+    }
+
+    public BlockState getState(int index) {
+        return palette.get(stateIds[index]);
+    }
+
+    /**
+     * @return hull indices in the order the blocks have to be placed, supports before the
+     * blocks hanging on them. The array is shared and must not be modified.
+     */
+    public int[] getPlacementOrder() {
+        if (placementOrder == null) {
+            placementOrder = computePlacementOrder();
+        }
+        return placementOrder;
+    }
+
+    public int getPaletteSize() {
+        return palette.size();
+    }
+
+    public BlockState getPaletteState(int id) {
+        return palette.get(id);
+    }
+
+    /**
+     * @return an immutable copy of the blocks, for planning on other threads
+     */
+    public HullSnapshot snapshot() {
+        return new HullSnapshot(Arrays.copyOf(positions, size), Arrays.copyOf(stateIds, size),
+                palette.toArray(new BlockState[0]), getPlacementOrder());
+    }
+
+    /**
+     * Installs a quarter turn around the vessel origin planned by MovePlanner from a
+     * snapshot of this hull. Positions are replaced and each palette entry takes its
+     * rotated state, so the palette ids stay valid.
+     *
+     * @param plan MovePlanner.RotationPlan planned from a snapshot of this hull
+     */
+    public void applyRotation(MovePlanner.RotationPlan plan) {
+        if (plan.positions.length != size || plan.palette.length != palette.size()) {
+            throw new IllegalStateException("Hull changed since the rotation was planned");
+        }
+        System.arraycopy(plan.positions, 0, positions, 0, size);
+        indexByPosition = plan.index;
+        paletteIds.clear();
+        for (int id = 0; id < plan.palette.length; id++) {
+            palette.set(id, plan.palette[id]);
+            paletteIds.put(plan.palette[id], id);
+            paletteSupport[id] = AttachmentTable.support(CraftBlockData.fromData(plan.palette[id]));
+        }
+    }
+
+    private int paletteId(BlockState state) {
+        int id = paletteIds.getInt(state);
+        if (id != -1) {
+            return id;
+        }
+        id = palette.size();
+        palette.add(state);
+        paletteIds.put(state, id);
+        if (id == paletteSupport.length) {
+            paletteSupport = Arrays.copyOf(paletteSupport, id * 2);
+        }
+        paletteSupport[id] = AttachmentTable.support(CraftBlockData.fromData(state));
+        return id;
+    }
+
+    // Sorts the blocks by how many blocks they hang from, counting sort on that depth, so
+    // every support comes before what it holds and hull order is kept otherwise.
+    private int[] computePlacementOrder() {
+        int[] depths = new int[size];
+        Arrays.fill(depths, UNKNOWN_DEPTH);
+        IntArrayList chain = new IntArrayList();
+        int maxDepth = 0;
+        for (int i = 0; i < size; i++) {
+            maxDepth = Math.max(maxDepth, depthOf(i, depths, chain));
+        }
+        int[] starts = new int[maxDepth + 2];
+        for (int i = 0; i < size; i++) {
+            starts[depths[i] + 1]++;
+        }
+        for (int depth = 1; depth < starts.length; depth++) {
+            starts[depth] += starts[depth - 1];
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[starts[depths[i]]++] = i;
+        }
+        return order;
+    }
+
+    // Follows the chain of supports down from index until a block whose depth is known or
+    // that stands on its own, then numbers the chain back up. A loop of blocks claiming to
+    // hang on each other is cut where the walk comes back to a block already on the chain.
+    // Walks instead of recursing so a long chain can't overflow the stack.
+    private int depthOf(int index, int[] depths, IntArrayList chain) {
+        if (depths[index] >= 0) {
+            return depths[index];
+        }
+        chain.clear();
+        int current = index;
+        int depth = -1;
+        while (depth < 0) {
+            chain.add(current);
+            depths[current] = ON_CHAIN;
+            int support = paletteSupport[stateIds[current]];
+            if (support == AttachmentTable.FREE_STANDING) {
+                depth = 0;
+            } else if (support == AttachmentTable.LOOSE) {
+                depth = 1;
+            } else {
+                BlockFace face = AttachmentTable.SUPPORT_FACES[support];
+                int supportIndex = indexOf(getX(current) + face.getModX(), getY(current) + face.getModY(),
+                        getZ(current) + face.getModZ());
+                if (supportIndex == -1 || depths[supportIndex] == ON_CHAIN) {
+                    depth = 1;
+                } else if (depths[supportIndex] >= 0) {
+                    depth = depths[supportIndex] + 1;
+                } else {
+                    current = supportIndex;
+                }
+            }
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            depths[chain.getInt(i)] = depth++;
+        }
+        return depths[index];
+    }
+}
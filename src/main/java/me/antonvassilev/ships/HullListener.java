@@ -0,0 +1,120 @@
+package me.antonvassilev.ships;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockMultiPlaceEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.player.PlayerBucketEmptyEvent;
+import org.bukkit.event.player.PlayerBucketFillEvent;
+
+import java.util.List;
+
+/**
+ * Keeps hulls up to date as players build on and break vessels. A placed block joins the
+ * vessel it touches and a broken or exploded block leaves the vessel it belonged to, each
+ * with a handful of index lookups instead of a rediscovery. License signs are the
+ * vessel's identity and are left alone.
+ *
+ * The same events, along with flowing and poured fluids, mark the columns they change as
+ * stale in the vessels' heightmaps.
+ */
+public class HullListener implements Listener {
+    private static final BlockFace[] CONNECTING_FACES = {
+            BlockFace.UP, BlockFace.DOWN, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST
+    };
+
+    private final VesselIndex index;
+
+    public HullListener(VesselIndex index) {
+        this.index = index;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlace(BlockPlaceEvent event) {
+        if (event instanceof BlockMultiPlaceEvent) {
+            // Beds, doors and the like place several blocks at once.
+            for (BlockState replaced : ((BlockMultiPlaceEvent) event).getReplacedBlockStates()) {
+                HeightmapCache.invalidate(replaced.getBlock());
+                addToAdjacentVessel(replaced.getBlock());
+            }
+        } else {
+            HeightmapCache.invalidate(event.getBlockPlaced());
+            addToAdjacentVessel(event.getBlockPlaced());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBreak(BlockBreakEvent event) {
+        HeightmapCache.invalidate(event.getBlock());
+        removeFromVessel(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onFlow(BlockFromToEvent event) {
+        HeightmapCache.invalidate(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketEmpty(PlayerBucketEmptyEvent event) {
+        HeightmapCache.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketFill(PlayerBucketFillEvent event) {
+        HeightmapCache.invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        removeFromVessels(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        removeFromVessels(event.blockList());
+    }
+
+    private void addToAdjacentVessel(Block block) {
+        if (index.lookup(block) != VesselIndex.NOT_INDEXED) {
+            return;
+        }
+        for (BlockFace face : CONNECTING_FACES) {
+            int entry = index.lookup(block.getWorld(),
+                    block.getX() + face.getModX(), block.getY() + face.getModY(), block.getZ() + face.getModZ());
+            if (entry != VesselIndex.NOT_INDEXED) {
+                Vessel vessel = index.getVessel(entry);
+                if (vessel != null && vessel.addBlock(block)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void removeFromVessels(List<Block> blocks) {
+        for (Block block : blocks) {
+            HeightmapCache.invalidate(block);
+            removeFromVessel(block);
+        }
+    }
+
+    private void removeFromVessel(Block block) {
+        int entry = index.lookup(block);
+        if (entry == VesselIndex.NOT_INDEXED) {
+            return;
+        }
+        Vessel vessel = index.getVessel(entry);
+        Vessel.ShipSignType signType = VesselIndex.getSignType(entry);
+        if (vessel == null || signType == Vessel.ShipSignType.LICENSE) {
+            return;
+        }
+        vessel.removeBlock(block, signType);
+    }
+}
@@ -0,0 +1,75 @@
+package me.antonvassilev.ships;
+
+/**
+ * Queues the block writes that place, clear, translate and rotate a hull. Only depends on
+ * the Hull and a BlockWriteEngine, so the same planning runs in game and against a
+ * MemoryBlockAccess.
+ */
+public final class HullPlanner {
+    private HullPlanner() {
+    }
+
+    /**
+     * Queues every hull block at the given origin, in the hull's placement order so the
+     * blocks attached to others always have something to hang on to.
+     */
+    public static void queueHull(BlockWriteEngine engine, Hull hull, int originX, int originY, int originZ) {
+        for (int i : hull.getPlacementOrder()) {
+            engine.queue(originX + hull.getX(i),
+                    originY + hull.getY(i),
+                    originZ + hull.getZ(i),
+                    hull.getState(i));
+        }
+    }
+
+    /**
+     * Queues air on every hull block at the given origin.
+     */
+    public static void queueClear(BlockWriteEngine engine, Hull hull, int originX, int originY, int originZ) {
+        for (int i = 0; i < hull.size(); i++) {
+            engine.clear(originX + hull.getX(i), originY + hull.getY(i), originZ + hull.getZ(i));
+        }
+    }
+
+    /**
+     * Clears the whole hull and rewrites it at the new origin.
+     *
+     * @param originX int x of the origin after the move
+     * @param x       int distance moved along x
+     */
+    public static void queueFullMove(BlockWriteEngine engine, Hull hull, int originX, int originY, int originZ,
+                                     int x, int y, int z) {
+        queueClear(engine, hull, originX - x, originY - y, originZ - z);
+        queueHull(engine, hull, originX, originY, originZ);
+    }
+
+    /**
+     * Only clears cells the hull leaves behind, and only writes cells whose block state
+     * differs from what the old hull had there. Since hull positions are relative to the
+     * origin, the old block sharing a world cell with block i sits at (rel_i + delta).
+     *
+     * @param originX int x of the origin after the move
+     * @param x       int distance moved along x
+     */
+    public static void queueDifferentialMove(BlockWriteEngine engine, Hull hull,
+                                             int originX, int originY, int originZ, int x, int y, int z) {
+        for (int i = 0; i < hull.size(); i++) {
+            int relX = hull.getX(i);
+            int relY = hull.getY(i);
+            int relZ = hull.getZ(i);
+            if (hull.indexOf(relX - x, relY - y, relZ - z) == -1) {
+                engine.clear(originX - x + relX, originY - y + relY, originZ - z + relZ);
+            }
+        }
+
+        for (int i : hull.getPlacementOrder()) {
+            int relX = hull.getX(i);
+            int relY = hull.getY(i);
+            int relZ = hull.getZ(i);
+            int previous = hull.indexOf(relX + x, relY + y, relZ + z);
+            if (previous == -1 || hull.getStateId(previous) != hull.getStateId(i)) {
+                engine.queue(originX + relX, originY + relY, originZ + relZ, hull.getState(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * Immutable copy of the blocks of a Hull, taken on the main thread so that moves and
+ * turns can be planned on other threads while the hull itself stays untouched. Block
+ * entity snapshots aren't copied; they're handled when the plan is applied.
+ */
+public class HullSnapshot {
+    private final long[] positions;
+    private final int[] stateIds;
+    private final BlockState[] palette;
+    private final int[] placementOrder;
+    private Long2IntOpenHashMap indexByPosition = null;
+
+    HullSnapshot(long[] positions, int[] stateIds, BlockState[] palette, int[] placementOrder) {
+        this.positions = positions;
+        this.stateIds = stateIds;
+        this.palette = palette;
+        this.placementOrder = placementOrder;
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    public long getPosition(int index) {
+        return positions[index];
+    }
+
+    public int getX(int index) {
+        return BlockPos.getX(positions[index]);
+    }
+
+    public int getY(int index) {
+        return BlockPos.getY(positions[index]);
+    }
+
+    public int getZ(int index) {
+        return BlockPos.getZ(positions[index]);
+    }
+
+    public int getStateId(int index) {
+        return stateIds[index];
+    }
+
+    public BlockState getState(int index) {
+        return palette[stateIds[index]];
+    }
+
+    /**
+     * @return see Hull.getPlacementOrder, must not be modified
+     */
+    public int[] getPlacementOrder() {
+        return placementOrder;
+    }
+
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    public BlockState getPaletteState(int id) {
+        return palette[id];
+    }
+
+    /**
+     * Builds the position index used by indexOf. Has to be called once, by the planning
+     * thread, before the snapshot is shared between planning tasks.
+     */
+    void buildIndex() {
+        if (indexByPosition != null) {
+            return;
+        }
+        Long2IntOpenHashMap index = new Long2IntOpenHashMap(positions.length);
+        index.defaultReturnValue(-1);
+        for (int i = 0; i < positions.length; i++) {
+            index.put(positions[i], i);
+        }
+        indexByPosition = index;
+    }
+
+    /**
+     * @return index of the block at the relative position, or -1 if it isn't part of the hull
+     */
+    public int indexOf(int x, int y, int z) {
+        return indexByPosition.get(BlockPos.asLong(x, y, z));
+    }
+}
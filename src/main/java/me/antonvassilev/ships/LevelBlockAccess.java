@@ -0,0 +1,90 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_18_R2.CraftWorld;
+
+/**
+ * Reads straight from the loaded chunk sections of a level, looking each chunk and
+ * section up once. Meant to be short lived, for a single check on the main thread, since
+ * the cached sections go stale when chunks unload.
+ */
+public class LevelBlockAccess implements WritableBlockAccess {
+    private final ServerLevel level;
+    // Section key -> section, null for sections of unloaded chunks.
+    private final Long2ObjectOpenHashMap<LevelChunkSection> sections = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<LevelChunk> chunks = new Long2ObjectOpenHashMap<>();
+
+    public LevelBlockAccess(World world) {
+        this.level = ((CraftWorld) world).getHandle();
+    }
+
+    @Override
+    public BlockState getBlockState(int x, int y, int z) {
+        if (level.isOutsideBuildHeight(y)) {
+            return null;
+        }
+        long sectionKey = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        LevelChunkSection section = sections.get(sectionKey);
+        if (section == null) {
+            if (sections.containsKey(sectionKey)) {
+                return null;
+            }
+            LevelChunk chunk = chunk(x >> 4, z >> 4);
+            section = chunk == null ? null : chunk.getSection(level.getSectionIndex(y));
+            sections.put(sectionKey, section);
+            if (section == null) {
+                return null;
+            }
+        }
+        return section.getBlockState(x & 15, y & 15, z & 15);
+    }
+
+    /**
+     * Writes through the level without neighbour updates. Bulk writes should go through
+     * a BlockWriteEngine instead.
+     */
+    @Override
+    public void setBlockState(int x, int y, int z, BlockState state) {
+        level.setBlock(new BlockPos(x, y, z), state, Block.UPDATE_CLIENTS | Block.UPDATE_KNOWN_SHAPE);
+    }
+
+    @Override
+    public void setBlockEntityData(int x, int y, int z, CompoundTag tag) {
+        BlockEntity entity = level.getBlockEntity(new BlockPos(x, y, z));
+        if (entity != null) {
+            entity.load(tag);
+            entity.setChanged();
+        }
+    }
+
+    @Override
+    public int getMinY() {
+        return level.getMinBuildHeight();
+    }
+
+    @Override
+    public int getMaxY() {
+        return level.getMaxBuildHeight();
+    }
+
+    private LevelChunk chunk(int chunkX, int chunkZ) {
+        long chunkKey = ChunkPos.asLong(chunkX, chunkZ);
+        LevelChunk chunk = chunks.get(chunkKey);
+        if (chunk == null && !chunks.containsKey(chunkKey)) {
+            chunk = level.getChunkSource().getChunkNow(chunkX, chunkZ);
+            chunks.put(chunkKey, chunk);
+        }
+        return chunk;
+    }
+}
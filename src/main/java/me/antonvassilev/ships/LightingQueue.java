@@ -0,0 +1,75 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.shorts.ShortIterator;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ThreadedLevelLightEngine;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Light checks for vessel moves, grouped by chunk section. The block write engine only
+ * collects the positions whose light properties changed while a move is written, and
+ * hands them over here once the move is committed, so cells that are cleared and
+ * rewritten by the same move are never relit and each section is handed to the light
+ * engine in one go. With a delay configured the checks run that many ticks later,
+ * outside the tick that wrote the blocks.
+ */
+public class LightingQueue {
+    private static Plugin owningPlugin = null;
+    private static int delayTicks = 0;
+
+    /**
+     * @param plugin Plugin used to schedule delayed relighting
+     * @param delay  int ticks to wait before relighting, 0 to relight right after a move
+     */
+    public static void configure(Plugin plugin, int delay) {
+        owningPlugin = plugin;
+        delayTicks = Math.max(0, delay);
+    }
+
+    /**
+     * Queues light checks for the given section positions.
+     *
+     * @param level    ServerLevel
+     * @param sections section key -> section relative positions, as packed by
+     *                 SectionPos.sectionRelativePos. Owned by the queue afterwards.
+     */
+    public static void submit(ServerLevel level, Long2ObjectMap<ShortSet> sections) {
+        if (sections.isEmpty()) {
+            return;
+        }
+        if (delayTicks == 0 || owningPlugin == null || !owningPlugin.isEnabled()) {
+            relight(level, sections);
+        } else {
+            Bukkit.getScheduler().runTaskLater(owningPlugin, () -> relight(level, sections), delayTicks);
+        }
+    }
+
+    private static void relight(ServerLevel level, Long2ObjectMap<ShortSet> sections) {
+        ThreadedLevelLightEngine lightEngine = level.getChunkSource().getLightEngine();
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        ObjectIterator<Long2ObjectMap.Entry<ShortSet>> it = sections.long2ObjectEntrySet().iterator();
+        while (it.hasNext()) {
+            Long2ObjectMap.Entry<ShortSet> entry = it.next();
+            long sectionKey = entry.getLongKey();
+            // The chunk may have unloaded while the checks were waiting.
+            if (level.getChunkSource().getChunkNow(SectionPos.x(sectionKey), SectionPos.z(sectionKey)) == null) {
+                continue;
+            }
+            int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKey));
+            int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKey));
+            int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKey));
+            ShortIterator positions = entry.getValue().iterator();
+            while (positions.hasNext()) {
+                short index = positions.nextShort();
+                pos.set(baseX + ((index >> 8) & 15), baseY + (index & 15), baseZ + ((index >> 4) & 15));
+                lightEngine.checkBlock(pos);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * In-memory world for running the vessel engine without a server. Positions that were
+ * never written read as air, and every chunk counts as loaded. Block entities are only
+ * kept as the data last loaded into them, which goes when the block is replaced.
+ */
+public class MemoryBlockAccess implements WritableBlockAccess {
+    private final Long2ObjectOpenHashMap<BlockState> blocks = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<CompoundTag> blockEntities = new Long2ObjectOpenHashMap<>();
+    private final int minY;
+    private final int maxY;
+
+    public MemoryBlockAccess(int minY, int maxY) {
+        this.minY = minY;
+        this.maxY = maxY;
+    }
+
+    @Override
+    public BlockState getBlockState(int x, int y, int z) {
+        if (y < minY || y >= maxY) {
+            return null;
+        }
+        BlockState state = blocks.get(BlockPos.asLong(x, y, z));
+        return state == null ? BlockWriteEngine.AIR : state;
+    }
+
+    @Override
+    public void setBlockState(int x, int y, int z, BlockState state) {
+        if (y < minY || y >= maxY) {
+            return;
+        }
+        long position = BlockPos.asLong(x, y, z);
+        if (getBlockState(x, y, z) != state) {
+            blockEntities.remove(position);
+        }
+        if (state.isAir()) {
+            blocks.remove(position);
+        } else {
+            blocks.put(position, state);
+        }
+    }
+
+    @Override
+    public void setBlockEntityData(int x, int y, int z, CompoundTag tag) {
+        BlockState state = getBlockState(x, y, z);
+        if (state != null && state.hasBlockEntity()) {
+            blockEntities.put(BlockPos.asLong(x, y, z), tag);
+        }
+    }
+
+    /**
+     * @return data last loaded into the block entity at the position, or null if none
+     */
+    public CompoundTag getBlockEntityData(int x, int y, int z) {
+        return blockEntities.get(BlockPos.asLong(x, y, z));
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * @return number of non-air blocks
+     */
+    public int size() {
+        return blocks.size();
+    }
+}
@@ -0,0 +1,914 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Rotation;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_18_R2.block.data.CraftBlockData;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldSaveEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of vessel moves and turns, so that a crash or shutdown in the
+ * middle of one can be repaired on the next start. Before the first block of an
+ * operation is written, a begin record notes the hull it starts from, the origins it
+ * moves between, the turn, if any, and the data of the block entities the operation
+ * carries out of the world (see BlockEntityMover); a commit record follows once its
+ * last block is written and the block entities are back in place. Blocks only reach the disk with the world, so an operation stays in the
+ * journal until a save of its world that started after its commit has finished, which
+ * is noted as a checkpoint record. WorldSaveEvent fires as a save starts and chunks are
+ * written after it, over the following ticks with incremental autosaves, so the commits
+ * made before a save are only checkpointed when the next save of the world starts.
+ *
+ * On startup the operations not covered by a checkpoint are replayed, vessel by vessel.
+ * If every cell an operation starts from still holds the hull, the world was saved
+ * before any of its blocks were written: blocks are written clears first, so the source
+ * breaks before anything lands at the destination. That operation and the ones after it
+ * are rolled back, which puts the stored vessel record back where the hull still is and
+ * leaves the blocks alone; only the block entity data is written back into them, in
+ * case the world was saved after it had been taken out. The operations before it are
+ * redone. Redoing is idempotent: cells the hull left are only cleared
+ * while they still hold the hull's block and cells it moved to are only written where
+ * the world differs, so the ship ends up whole at its destination whether the world was
+ * saved during or after the operation. The block entity data goes into the blocks the
+ * redo wrote, or into every block at the destination if the operation never committed,
+ * as its block entities were never put back then. The stored vessel records are brought
+ * up to date along with it. Rolled back operations are dropped from the journal straight away, so
+ * a later start can't redo them over wherever the vessel has gone since.
+ *
+ * Hulls are written once per hull version and shared by the operations that use them,
+ * so a move costs a begin and a commit record of a few dozen bytes. Records are framed
+ * like the VesselStore's, [int length][byte type][payload], and the file is rewritten
+ * with only the live records once it has grown to several times their size.
+ */
+public class MoveJournal implements Listener {
+    private static final int MAGIC = 0x53484a4e; // "SHJN"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte RECORD_HULL = 1;
+    private static final byte RECORD_BEGIN = 2;
+    private static final byte RECORD_COMMIT = 3;
+    private static final byte RECORD_CHECKPOINT = 4;
+    private static final byte RECORD_ABORT = 5;
+    private static final int COMPACTION_RATIO = 4;
+    private static final long COMPACTION_MIN_BYTES = 1 << 20;
+
+    private final File file;
+    private final Logger logger;
+    // All file access happens on this thread, in submission order.
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Ships move journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Main thread: ids handed out so far, and the hull record each vessel's ops refer to.
+    private long nextOpId = 1;
+    private long nextHullId = 1;
+    private long commits = 0;
+    private final Map<String, JournalledHull> journalledHulls = new HashMap<>();
+    // World id -> commits made before its last save started, checkpointed at its next save.
+    private final Map<UUID, Long> savesStarted = new HashMap<>();
+
+    // Writer thread, apart from load() which runs before anything is submitted to it.
+    private final Map<Long, Frame> hullFrames = new HashMap<>();
+    private final Map<String, Long> latestHulls = new HashMap<>();
+    private final LinkedHashMap<Long, OpFrames> liveOps = new LinkedHashMap<>();
+    private long fileBytes = 0;
+
+    public MoveJournal(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Redoes or rolls back every operation the journal doesn't know to be saved with its
+     * world, and updates the matching vessel records. Must be called on the main thread,
+     * once the worlds are loaded, before anything else uses the journal.
+     *
+     * @param records List of the records loaded from the store, updated in place
+     * @param store   VesselStore the updated records are written back to
+     * @return number of operations redone or rolled back
+     */
+    public int recover(List<VesselStore.Record> records, VesselStore store) {
+        List<Operation> pending = load();
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        Map<String, VesselStore.Record> byName = new HashMap<>();
+        for (VesselStore.Record record : records) {
+            byName.put(record.name, record);
+        }
+        Map<String, List<Operation>> chains = new LinkedHashMap<>();
+        for (Operation op : pending) {
+            chains.computeIfAbsent(op.hull.name, name -> new ArrayList<>()).add(op);
+        }
+        Map<String, VesselStore.Record> changed = new LinkedHashMap<>();
+        int rolledBack = 0;
+        for (Map.Entry<String, List<Operation>> entry : chains.entrySet()) {
+            List<Operation> chain = entry.getValue();
+            try {
+                VesselStore.Record record = byName.get(entry.getKey());
+                // A vessel never changes worlds.
+                World world = Bukkit.getWorld(chain.get(0).worldId);
+                if (world != null) {
+                    List<BlockState[]> palettes = new ArrayList<>(chain.size());
+                    for (Operation op : chain) {
+                        palettes.add(parsePalette(op.hull.palette));
+                    }
+                    if (replay(chain, record, palettes, loadChunks(world, chain), new BlockWriteEngine(world))) {
+                        changed.put(record.name, record);
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to replay the journalled moves of vessel " + entry.getKey(), e);
+            }
+            for (Operation op : chain) {
+                if (op.rolledBack) {
+                    abort(op.id);
+                    rolledBack++;
+                } else if (!op.committed) {
+                    // Redone now, resolved by the next save of the world like any other.
+                    commit(op.id);
+                }
+            }
+        }
+        for (VesselStore.Record record : changed.values()) {
+            store.rewrite(record);
+        }
+        logger.info("Redid " + (pending.size() - rolledBack) + " and rolled back " + rolledBack +
+                " journalled vessel operations");
+        return pending.size();
+    }
+
+    /**
+     * Journals an operation about to be written. Has to be called while the vessel's hull
+     * is still as it was before the operation.
+     *
+     * @param vessel        Vessel
+     * @param fromX         int world x of the origin before the operation
+     * @param toX           int world x of the origin after the operation
+     * @param sinFactor     int 1 for a left turn, -1 for a right turn, 0 for no turn
+     * @param blockEntities hull index -> block entity taken out of the world for it
+     * @return id to commit the operation with
+     */
+    public long begin(Vessel vessel, int fromX, int fromY, int fromZ, int toX, int toY, int toZ, int sinFactor,
+                      Int2ObjectMap<BlockEntity> blockEntities) {
+        JournalledHull journalled = journalledHulls.get(vessel.getName());
+        if (journalled == null || journalled.vessel != vessel || journalled.hullVersion != vessel.getHullVersion()) {
+            Hull hull = vessel.getHull();
+            String[] palette = new String[hull.getPaletteSize()];
+            for (int id = 0; id < palette.length; id++) {
+                palette[id] = CraftBlockData.fromData(hull.getPaletteState(id)).getAsString();
+            }
+            long[] positions = new long[hull.size()];
+            int[] stateIds = new int[hull.size()];
+            for (int i = 0; i < hull.size(); i++) {
+                positions[i] = hull.getPosition(i);
+                stateIds[i] = hull.getStateId(i);
+            }
+            journalled = new JournalledHull(vessel, journalHull(vessel.getName(), palette, positions, stateIds));
+            journalledHulls.put(vessel.getName(), journalled);
+        }
+        Int2ObjectMap<CompoundTag> data = new Int2ObjectOpenHashMap<>(blockEntities.size());
+        for (Int2ObjectMap.Entry<BlockEntity> entry : blockEntities.int2ObjectEntrySet()) {
+            data.put(entry.getIntKey(), entry.getValue().saveWithoutMetadata());
+        }
+        return begin(journalled.id, vessel.getWorld().getUID(), fromX, fromY, fromZ, toX, toY, toZ, sinFactor, data);
+    }
+
+    // Journals the hull of the named vessel and returns the id operations refer to it by.
+    long journalHull(String name, String[] palette, long[] positions, int[] stateIds) {
+        long hullId = nextHullId++;
+        byte[] record = encodeHull(hullId, name, palette, positions, stateIds);
+        submit(() -> {
+            Frame frame = write(record);
+            if (frame != null) {
+                hullFrames.put(hullId, frame);
+                Long previous = latestHulls.put(name, hullId);
+                if (previous != null && !isReferenced(previous)) {
+                    hullFrames.remove(previous);
+                }
+            }
+        });
+        return hullId;
+    }
+
+    // Journals an operation on a journalled hull, with the block entity data by hull index.
+    long begin(long hullId, UUID worldId, int fromX, int fromY, int fromZ, int toX, int toY, int toZ,
+               int sinFactor, Int2ObjectMap<CompoundTag> blockEntities) {
+        long opId = nextOpId++;
+        byte[] record = frame(RECORD_BEGIN, out -> {
+            out.writeLong(opId);
+            out.writeLong(hullId);
+            out.writeLong(worldId.getMostSignificantBits());
+            out.writeLong(worldId.getLeastSignificantBits());
+            out.writeInt(fromX);
+            out.writeInt(fromY);
+            out.writeInt(fromZ);
+            out.writeInt(toX);
+            out.writeInt(toY);
+            out.writeInt(toZ);
+            out.writeByte(sinFactor);
+            out.writeInt(blockEntities.size());
+            for (Int2ObjectMap.Entry<CompoundTag> entry : blockEntities.int2ObjectEntrySet()) {
+                out.writeInt(entry.getIntKey());
+                NbtIo.write(entry.getValue(), out);
+            }
+        });
+        submit(() -> {
+            Frame frame = write(record);
+            if (frame != null) {
+                liveOps.put(opId, new OpFrames(worldId, hullId, frame));
+            }
+        });
+        return opId;
+    }
+
+    /**
+     * Notes that every block of the operation has been written.
+     */
+    public void commit(long opId) {
+        long sequence = ++commits;
+        byte[] record = frame(RECORD_COMMIT, out -> {
+            out.writeLong(opId);
+            out.writeLong(sequence);
+        });
+        submit(() -> {
+            Frame frame = write(record);
+            OpFrames op = liveOps.get(opId);
+            if (frame != null && op != null) {
+                op.commit = frame;
+                op.commitSequence = sequence;
+            }
+        });
+    }
+
+    // Drops an operation that was rolled back, as if it had never begun.
+    void abort(long opId) {
+        byte[] record = frame(RECORD_ABORT, out -> out.writeLong(opId));
+        submit(() -> {
+            write(record);
+            liveOps.remove(opId);
+            hullFrames.keySet().removeIf(hullId -> !isReferenced(hullId));
+        });
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldSave(WorldSaveEvent event) {
+        saveStarted(event.getWorld().getUID());
+    }
+
+    // A save of the world is starting. The commits made before the previous one are on
+    // disk by now, as that save has long finished.
+    void saveStarted(UUID worldId) {
+        Long finished = savesStarted.put(worldId, commits);
+        if (finished == null) {
+            return;
+        }
+        long sequence = finished;
+        byte[] record = frame(RECORD_CHECKPOINT, out -> {
+            out.writeLong(worldId.getMostSignificantBits());
+            out.writeLong(worldId.getLeastSignificantBits());
+            out.writeLong(sequence);
+        });
+        submit(() -> {
+            write(record);
+            resolve(worldId, sequence);
+            if (fileBytes > COMPACTION_MIN_BYTES && fileBytes > liveBytes() * COMPACTION_RATIO) {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Waits for all pending writes to reach the disk.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe("Timed out writing the move journal");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //
+    // Recovery
+    //
+
+    // Reads the journal and returns the operations that aren't covered by a checkpoint.
+    List<Operation> load() {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return new ArrayList<>();
+        }
+        Map<Long, HullRecord> hulls = new HashMap<>();
+        LinkedHashMap<Long, Operation> ops = new LinkedHashMap<>();
+        long validLength = HEADER_SIZE;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                logger.severe("Unrecognised move journal " + file + ", ignoring it");
+                return new ArrayList<>();
+            }
+            while (buffer.remaining() >= 5) {
+                long offset = buffer.position();
+                int length = buffer.getInt();
+                if (length < 1 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(buffer.position() + length);
+                applyRecord(hulls, ops, payload.get(), payload, new Frame(offset, length + 4));
+                validLength = buffer.position();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to read move journal " + file, e);
+        }
+
+        fileBytes = validLength;
+        if (validLength < file.length()) {
+            logger.warning("Dropping incomplete record at the end of " + file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to truncate move journal " + file, e);
+            }
+        }
+        return new ArrayList<>(ops.values());
+    }
+
+    private void applyRecord(Map<Long, HullRecord> hulls, LinkedHashMap<Long, Operation> ops, byte type,
+                             ByteBuffer in, Frame frame) {
+        switch (type) {
+            case RECORD_HULL: {
+                HullRecord hull = readHull(in);
+                hulls.put(hull.id, hull);
+                nextHullId = Math.max(nextHullId, hull.id + 1);
+                hullFrames.put(hull.id, frame);
+                latestHulls.put(hull.name, hull.id);
+                break;
+            }
+            case RECORD_BEGIN: {
+                Operation op = new Operation(in.getLong(), in.getLong(), new UUID(in.getLong(), in.getLong()));
+                op.fromX = in.getInt();
+                op.fromY = in.getInt();
+                op.fromZ = in.getInt();
+                op.toX = in.getInt();
+                op.toY = in.getInt();
+                op.toZ = in.getInt();
+                op.sinFactor = in.get();
+                op.blockEntities = readBlockEntities(in);
+                op.hull = hulls.get(op.hullId);
+                nextOpId = Math.max(nextOpId, op.id + 1);
+                if (op.hull != null) {
+                    ops.put(op.id, op);
+                    liveOps.put(op.id, new OpFrames(op.worldId, op.hullId, frame));
+                }
+                break;
+            }
+            case RECORD_COMMIT: {
+                long opId = in.getLong();
+                long sequence = in.getLong();
+                commits = Math.max(commits, sequence);
+                Operation op = ops.get(opId);
+                OpFrames frames = liveOps.get(opId);
+                if (op != null && frames != null) {
+                    op.committed = true;
+                    frames.commit = frame;
+                    frames.commitSequence = sequence;
+                }
+                break;
+            }
+            case RECORD_ABORT: {
+                long opId = in.getLong();
+                ops.remove(opId);
+                liveOps.remove(opId);
+                break;
+            }
+            case RECORD_CHECKPOINT: {
+                UUID worldId = new UUID(in.getLong(), in.getLong());
+                long sequence = in.getLong();
+                resolve(worldId, sequence);
+                ops.keySet().retainAll(liveOps.keySet());
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private static BlockState[] parsePalette(String[] palette) {
+        BlockState[] states = new BlockState[palette.length];
+        for (int id = 0; id < palette.length; id++) {
+            states[id] = ((CraftBlockData) Bukkit.createBlockData(palette[id])).getState();
+        }
+        return states;
+    }
+
+    // Loads the chunks the operations move the hull between, so they can be read.
+    private static LevelBlockAccess loadChunks(World world, List<Operation> chain) {
+        LongOpenHashSet chunks = new LongOpenHashSet();
+        for (Operation op : chain) {
+            for (long relative : op.hull.positions) {
+                long turned = turn(relative, op.sinFactor);
+                chunks.add(ChunkPos.asLong((op.fromX + BlockPos.getX(relative)) >> 4,
+                        (op.fromZ + BlockPos.getZ(relative)) >> 4));
+                chunks.add(ChunkPos.asLong((op.toX + BlockPos.getX(turned)) >> 4,
+                        (op.toZ + BlockPos.getZ(turned)) >> 4));
+            }
+        }
+        LongIterator it = chunks.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            world.getChunkAt(ChunkPos.getX(chunk), ChunkPos.getZ(chunk));
+        }
+        return new LevelBlockAccess(world);
+    }
+
+    // Replays the pending operations of one vessel, in journal order, with the palettes
+    // of their hulls. The first operation whose source still holds its hull and every one
+    // after it are rolled back, the ones before it are redone. Rolled back operations are
+    // marked as such. Returns true if the record was changed.
+    boolean replay(List<Operation> chain, VesselStore.Record record, List<BlockState[]> palettes,
+                   WritableBlockAccess blocks, BlockWriteEngine engine) {
+        int intact = 0;
+        while (intact < chain.size() && !holdsHull(chain.get(intact), palettes.get(intact), blocks)) {
+            intact++;
+        }
+        boolean changed = false;
+        for (int i = 0; i < intact; i++) {
+            changed |= redo(chain.get(i), record, palettes.get(i), blocks, engine);
+        }
+        for (int i = chain.size() - 1; i >= intact; i--) {
+            changed |= rollBack(chain.get(i), record);
+            chain.get(i).rolledBack = true;
+        }
+        if (intact < chain.size()) {
+            // The later operations started from somewhere the hull no longer is.
+            Operation op = chain.get(intact);
+            for (Int2ObjectMap.Entry<CompoundTag> entry : op.blockEntities.int2ObjectEntrySet()) {
+                long relative = op.hull.positions[entry.getIntKey()];
+                blocks.setBlockEntityData(op.fromX + BlockPos.getX(relative), op.fromY + BlockPos.getY(relative),
+                        op.fromZ + BlockPos.getZ(relative), entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    // True if every cell the operation starts from holds the hull's block.
+    private static boolean holdsHull(Operation op, BlockState[] palette, BlockAccess blocks) {
+        HullRecord hull = op.hull;
+        for (int i = 0; i < hull.positions.length; i++) {
+            long relative = hull.positions[i];
+            if (blocks.getBlockState(op.fromX + BlockPos.getX(relative), op.fromY + BlockPos.getY(relative),
+                    op.fromZ + BlockPos.getZ(relative)) != palette[hull.stateIds[i]]) {
+                return false;
+            }
+        }
+        return hull.positions.length > 0;
+    }
+
+    // Puts the record back to the hull and origin the operation started from, if the store
+    // had already caught up with it. Returns true if the record was changed.
+    private static boolean rollBack(Operation op, VesselStore.Record record) {
+        HullRecord hull = op.hull;
+        if (record == null || !record.worldId.equals(op.worldId) || record.originX != op.toX ||
+                record.originY != op.toY || record.originZ != op.toZ ||
+                !Arrays.equals(record.stateIds, hull.stateIds) || record.positions.length != hull.positions.length) {
+            return false;
+        }
+        for (int i = 0; i < hull.positions.length; i++) {
+            if (record.positions[i] != turn(hull.positions[i], op.sinFactor)) {
+                return false;
+            }
+        }
+        record.originX = op.fromX;
+        record.originY = op.fromY;
+        record.originZ = op.fromZ;
+        if (op.sinFactor != 0) {
+            record.positions = hull.positions;
+            record.palette = hull.palette;
+            record.engineSignOffset = record.engineSignOffset == null ? null
+                    : turn(record.engineSignOffset, -op.sinFactor);
+            record.steeringSignOffset = record.steeringSignOffset == null ? null
+                    : turn(record.steeringSignOffset, -op.sinFactor);
+        }
+        return true;
+    }
+
+    // Writes the hull as it is after the operation through the engine, clearing the cells
+    // it left that still hold its blocks, and puts the block entity data back. The palette
+    // holds the hull's states before the operation, and blocks is the world the engine
+    // writes to. Returns true if the record had to be brought forward as well.
+    boolean redo(Operation op, VesselStore.Record record, BlockState[] palette, WritableBlockAccess blocks,
+                 BlockWriteEngine engine) {
+        HullRecord hull = op.hull;
+        BlockState[] after = new BlockState[palette.length];
+        for (int id = 0; id < palette.length; id++) {
+            after[id] = op.sinFactor == 0 ? palette[id]
+                    : palette[id].rotate(op.sinFactor > 0 ? Rotation.CLOCKWISE_90 : Rotation.COUNTERCLOCKWISE_90);
+        }
+
+        Hull target = new Hull();
+        LongOpenHashSet targetCells = new LongOpenHashSet(hull.positions.length);
+        long[] targetPositions = new long[hull.positions.length];
+        for (int i = 0; i < hull.positions.length; i++) {
+            targetPositions[i] = turn(hull.positions[i], op.sinFactor);
+            int x = BlockPos.getX(targetPositions[i]);
+            int y = BlockPos.getY(targetPositions[i]);
+            int z = BlockPos.getZ(targetPositions[i]);
+            target.add(x, y, z, after[hull.stateIds[i]]);
+            targetCells.add(BlockPos.asLong(op.toX + x, op.toY + y, op.toZ + z));
+        }
+
+        for (int i = 0; i < hull.positions.length; i++) {
+            long relative = hull.positions[i];
+            int x = op.fromX + BlockPos.getX(relative);
+            int y = op.fromY + BlockPos.getY(relative);
+            int z = op.fromZ + BlockPos.getZ(relative);
+            if (!targetCells.contains(BlockPos.asLong(x, y, z))
+                    && blocks.getBlockState(x, y, z) == palette[hull.stateIds[i]]) {
+                engine.clear(x, y, z);
+            }
+        }
+        boolean[] written = new boolean[hull.positions.length];
+        for (int i : target.getPlacementOrder()) {
+            int x = op.toX + target.getX(i);
+            int y = op.toY + target.getY(i);
+            int z = op.toZ + target.getZ(i);
+            if (blocks.getBlockState(x, y, z) != target.getState(i)) {
+                engine.queue(x, y, z, target.getState(i));
+                written[i] = true;
+            }
+        }
+        engine.commit();
+        // Once committed, the block entities were put back in place and may have changed
+        // since; the saved world only lacks them where the hull had to be written again.
+        for (Int2ObjectMap.Entry<CompoundTag> entry : op.blockEntities.int2ObjectEntrySet()) {
+            int i = entry.getIntKey();
+            if (!op.committed || written[i]) {
+                blocks.setBlockEntityData(op.toX + target.getX(i), op.toY + target.getY(i),
+                        op.toZ + target.getZ(i), entry.getValue());
+            }
+        }
+
+        // The store may not have caught up with the operation yet.
+        if (record == null || !record.worldId.equals(op.worldId) || record.originX != op.fromX ||
+                record.originY != op.fromY || record.originZ != op.fromZ ||
+                !Arrays.equals(record.positions, hull.positions) || !Arrays.equals(record.stateIds, hull.stateIds)) {
+            return false;
+        }
+        record.originX = op.toX;
+        record.originY = op.toY;
+        record.originZ = op.toZ;
+        if (op.sinFactor != 0) {
+            record.positions = targetPositions;
+            record.palette = new String[after.length];
+            for (int id = 0; id < after.length; id++) {
+                record.palette[id] = CraftBlockData.fromData(after[id]).getAsString();
+            }
+            record.engineSignOffset = record.engineSignOffset == null ? null
+                    : turn(record.engineSignOffset, op.sinFactor);
+            record.steeringSignOffset = record.steeringSignOffset == null ? null
+                    : turn(record.steeringSignOffset, op.sinFactor);
+        }
+        return true;
+    }
+
+    // Same quarter turn as MovePlanner.planRotation, for a packed relative position.
+    private static long turn(long position, int sinFactor) {
+        if (sinFactor == 0) {
+            return position;
+        }
+        return BlockPos.asLong(-BlockPos.getZ(position) * sinFactor, BlockPos.getY(position),
+                BlockPos.getX(position) * sinFactor);
+    }
+
+    //
+    // Writer thread
+    //
+
+    private void submit(Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.warning("Move journal is closed, an operation was not journalled");
+        }
+    }
+
+    // Drops the operations of the world that committed at or before the sequence number.
+    private void resolve(UUID worldId, long sequence) {
+        Iterator<Map.Entry<Long, OpFrames>> it = liveOps.entrySet().iterator();
+        while (it.hasNext()) {
+            OpFrames op = it.next().getValue();
+            if (op.worldId.equals(worldId) && op.commit != null && op.commitSequence <= sequence) {
+                it.remove();
+            }
+        }
+        hullFrames.keySet().removeIf(hullId -> !isReferenced(hullId));
+    }
+
+    private boolean isReferenced(long hullId) {
+        if (latestHulls.containsValue(hullId)) {
+            return true;
+        }
+        for (OpFrames op : liveOps.values()) {
+            if (op.hullId == hullId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long liveBytes() {
+        long bytes = 0;
+        for (Frame frame : hullFrames.values()) {
+            bytes += frame.length;
+        }
+        for (OpFrames op : liveOps.values()) {
+            bytes += op.begin.length + (op.commit == null ? 0 : op.commit.length);
+        }
+        return bytes;
+    }
+
+    // Appends a framed record and returns where it landed, or null if the write failed.
+    private Frame write(byte[] record) {
+        try {
+            if (!file.isFile() || file.length() < HEADER_SIZE) {
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(), header());
+                fileBytes = HEADER_SIZE;
+            }
+            Files.write(file.toPath(), record, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+            Frame frame = new Frame(fileBytes, record.length);
+            fileBytes += record.length;
+            return frame;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to write move journal " + file, e);
+            return null;
+        }
+    }
+
+    // Rewrites the journal with the live hulls and operations, in their original order,
+    // then swaps it in. Hulls go first, as operations refer back to them.
+    private void compact() {
+        File temp = new File(file.getPath() + ".tmp");
+        Map<Long, Frame> newHullFrames = new HashMap<>();
+        Map<Long, Frame[]> newOpFrames = new HashMap<>();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) liveBytes() + HEADER_SIZE);
+            bytes.write(header());
+            for (Map.Entry<Long, Frame> entry : hullFrames.entrySet()) {
+                newHullFrames.put(entry.getKey(), new Frame(bytes.size(), entry.getValue().length));
+                bytes.write(readFrame(source, entry.getValue()));
+            }
+            for (Map.Entry<Long, OpFrames> entry : liveOps.entrySet()) {
+                OpFrames op = entry.getValue();
+                Frame begin = new Frame(bytes.size(), op.begin.length);
+                bytes.write(readFrame(source, op.begin));
+                Frame commit = null;
+                if (op.commit != null) {
+                    commit = new Frame(bytes.size(), op.commit.length);
+                    bytes.write(readFrame(source, op.commit));
+                }
+                newOpFrames.put(entry.getKey(), new Frame[]{begin, commit});
+            }
+            Files.write(temp.toPath(), bytes.toByteArray(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            fileBytes = bytes.size();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to compact move journal " + file, e);
+            return;
+        }
+        hullFrames.clear();
+        hullFrames.putAll(newHullFrames);
+        for (Map.Entry<Long, OpFrames> entry : liveOps.entrySet()) {
+            Frame[] frames = newOpFrames.get(entry.getKey());
+            entry.getValue().begin = frames[0];
+            entry.getValue().commit = frames[1];
+        }
+    }
+
+    private static byte[] readFrame(FileChannel channel, Frame frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, frame.offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of move journal");
+            }
+        }
+        return buffer.array();
+    }
+
+    //
+    // Encoding
+    //
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).array();
+    }
+
+    private static byte[] encodeHull(long hullId, String name, String[] palette, long[] positions, int[] stateIds) {
+        return frame(RECORD_HULL, out -> {
+            out.writeLong(hullId);
+            putString(out, name);
+            out.writeInt(palette.length);
+            for (String state : palette) {
+                putString(out, state);
+            }
+            out.writeInt(positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                out.writeLong(positions[i]);
+                out.writeInt(stateIds[i]);
+            }
+        });
+    }
+
+    private static HullRecord readHull(ByteBuffer in) {
+        HullRecord hull = new HullRecord(in.getLong(), getString(in));
+        hull.palette = new String[in.getInt()];
+        for (int id = 0; id < hull.palette.length; id++) {
+            hull.palette[id] = getString(in);
+        }
+        int size = in.getInt();
+        hull.positions = new long[size];
+        hull.stateIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            hull.positions[i] = in.getLong();
+            hull.stateIds[i] = in.getInt();
+        }
+        return hull;
+    }
+
+    private static Int2ObjectMap<CompoundTag> readBlockEntities(ByteBuffer in) {
+        // Begin records journalled before block entity data was end here.
+        int count = in.hasRemaining() ? in.getInt() : 0;
+        if (count == 0) {
+            return Int2ObjectMaps.emptyMap();
+        }
+        byte[] bytes = new byte[in.remaining()];
+        in.get(bytes);
+        Int2ObjectOpenHashMap<CompoundTag> blockEntities = new Int2ObjectOpenHashMap<>(count);
+        try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            for (int n = 0; n < count; n++) {
+                int index = data.readInt();
+                blockEntities.put(index, NbtIo.read(data));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt block entity data in move journal", e);
+        }
+        return blockEntities;
+    }
+
+    private static byte[] frame(byte type, RecordWriter body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            body.write(out);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            ByteBuffer.wrap(record).putInt(record.length - 4);
+            return record;
+        } catch (IOException e) {
+            // Writing to a byte array doesn't fail.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Frame {
+        final long offset;
+        final int length;
+
+        Frame(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class OpFrames {
+        final UUID worldId;
+        final long hullId;
+        Frame begin;
+        Frame commit = null;
+        long commitSequence = 0;
+
+        OpFrames(UUID worldId, long hullId, Frame begin) {
+            this.worldId = worldId;
+            this.hullId = hullId;
+            this.begin = begin;
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class JournalledHull {
+        final Vessel vessel;
+        final int hullVersion;
+        final long id;
+
+        JournalledHull(Vessel vessel, long id) {
+            this.vessel = vessel;
+            this.hullVersion = vessel.getHullVersion();
+            this.id = id;
+        }
+    }
+
+    static class HullRecord {
+        final long id;
+        final String name;
+        String[] palette;
+        long[] positions;
+        int[] stateIds;
+
+        HullRecord(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    static class Operation {
+        final long id;
+        final long hullId;
+        final UUID worldId;
+        HullRecord hull;
+        int fromX;
+        int fromY;
+        int fromZ;
+        int toX;
+        int toY;
+        int toZ;
+        int sinFactor;
+        // Hull index -> data of the block entities the operation took out of the world.
+        Int2ObjectMap<CompoundTag> blockEntities = Int2ObjectMaps.emptyMap();
+        boolean committed = false;
+        // Set by replay for operations it rolled back rather than redid.
+        boolean rolledBack = false;
+
+        Operation(long id, long hullId, UUID worldId) {
+            this.id = id;
+            this.hullId = hullId;
+            this.worldId = worldId;
+        }
+    }
+}
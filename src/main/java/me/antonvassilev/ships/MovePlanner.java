@@ -0,0 +1,266 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Plans moves and turns off the main thread. Working from a HullSnapshot, the planner
+ * works out every cell to clear and every block to write, splitting the hull across a
+ * ForkJoin pool, and queues the result into a BlockWriteEngine in the same order
+ * HullPlanner would: clears first, then writes in the hull's placement order. The main
+ * thread only has to apply the plan and commit the engine.
+ *
+ * Hulls smaller than the parallel threshold aren't worth the hand-off and are planned
+ * on the calling thread, in which case the returned future is already complete.
+ */
+public final class MovePlanner {
+    // Hull blocks planned by a single task before it stops splitting.
+    private static final int LEAF_SIZE = 512;
+
+    private static ForkJoinPool pool = null;
+    private static int parallelThreshold = 1000;
+
+    private MovePlanner() {
+    }
+
+    /**
+     * @param threads   int planner threads, 0 for one less than the number of cores, -1
+     *                  to plan every move on the calling thread
+     * @param threshold int hull size from which planning is handed to the pool
+     */
+    public static void configure(int threads, int threshold) {
+        shutdown();
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors() - 1;
+        }
+        if (threads > 0) {
+            pool = new ForkJoinPool(threads);
+        }
+        parallelThreshold = Math.max(0, threshold);
+    }
+
+    public static void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Plans a translation by (x, y, z), see HullPlanner.queueDifferentialMove and
+     * HullPlanner.queueFullMove.
+     *
+     * @param engine       BlockWriteEngine the plan is queued into, not to be touched until
+     *                     the future completes
+     * @param hull         HullSnapshot the hull before the move
+     * @param originX      int x of the origin after the move
+     * @param x            int distance moved along x
+     * @param differential boolean only write the cells that change
+     * @return future completed with the engine once the plan is queued
+     */
+    public static CompletableFuture<BlockWriteEngine> planMove(BlockWriteEngine engine, HullSnapshot hull,
+                                                               int originX, int originY, int originZ,
+                                                               int x, int y, int z, boolean differential) {
+        return run(hull.size(), () -> {
+            Writes writes = new Writes(hull.size());
+            if (differential) {
+                hull.buildIndex();
+                plan(writes, (i, out) -> {
+                    int relX = hull.getX(i);
+                    int relY = hull.getY(i);
+                    int relZ = hull.getZ(i);
+                    if (hull.indexOf(relX - x, relY - y, relZ - z) == -1) {
+                        out.clear(i, BlockPos.asLong(originX - x + relX, originY - y + relY, originZ - z + relZ));
+                    }
+                    int previous = hull.indexOf(relX + x, relY + y, relZ + z);
+                    if (previous == -1 || hull.getStateId(previous) != hull.getStateId(i)) {
+                        out.write(i, BlockPos.asLong(originX + relX, originY + relY, originZ + relZ), hull.getState(i));
+                    }
+                });
+            } else {
+                plan(writes, (i, out) -> {
+                    int relX = hull.getX(i);
+                    int relY = hull.getY(i);
+                    int relZ = hull.getZ(i);
+                    out.clear(i, BlockPos.asLong(originX - x + relX, originY - y + relY, originZ - z + relZ));
+                    out.write(i, BlockPos.asLong(originX + relX, originY + relY, originZ + relZ), hull.getState(i));
+                });
+            }
+            writes.queueInto(engine, hull.getPlacementOrder());
+            return engine;
+        });
+    }
+
+    /**
+     * Plans a quarter turn around the vessel origin: (x, z) goes to (-z, x) for a left
+     * turn and to (z, -x) for a right one.
+     *
+     * @param engine      BlockWriteEngine the plan is queued into, not to be touched until
+     *                    the future completes
+     * @param hull        HullSnapshot the hull before the turn
+     * @param originX     int world x of the vessel origin
+     * @param sinFactor   int 1 for a left turn, -1 for a right turn
+     * @param rotateState UnaryOperator rotates a single block state, must be thread safe
+     * @return future completed with the plan, to be applied with Hull.applyRotation
+     */
+    public static CompletableFuture<RotationPlan> planRotation(BlockWriteEngine engine, HullSnapshot hull,
+                                                               int originX, int originY, int originZ,
+                                                               int sinFactor, UnaryOperator<BlockState> rotateState) {
+        return run(hull.size(), () -> {
+            // The palette is small, rotating it once up front keeps the tasks lock free.
+            BlockState[] palette = new BlockState[hull.getPaletteSize()];
+            for (int id = 0; id < palette.length; id++) {
+                palette[id] = rotateState.apply(hull.getPaletteState(id));
+            }
+            long[] positions = new long[hull.size()];
+            Writes writes = new Writes(hull.size());
+            plan(writes, (i, out) -> {
+                int oldX = hull.getX(i);
+                int y = hull.getY(i);
+                int oldZ = hull.getZ(i);
+                int newX = -oldZ * sinFactor;
+                int newZ = oldX * sinFactor;
+                positions[i] = BlockPos.asLong(newX, y, newZ);
+                out.clear(i, BlockPos.asLong(originX + oldX, originY + y, originZ + oldZ));
+                out.write(i, BlockPos.asLong(originX + newX, originY + y, originZ + newZ), palette[hull.getStateId(i)]);
+            });
+            // A turn rotates every block together with its support, so the placement
+            // order of the hull before the turn still holds after it.
+            writes.queueInto(engine, hull.getPlacementOrder());
+
+            Long2IntOpenHashMap index = new Long2IntOpenHashMap(positions.length);
+            index.defaultReturnValue(-1);
+            for (int i = 0; i < positions.length; i++) {
+                index.put(positions[i], i);
+            }
+            return new RotationPlan(engine, sinFactor, positions, index, palette);
+        });
+    }
+
+    private static <T> CompletableFuture<T> run(int size, Supplier<T> task) {
+        if (pool == null || size < parallelThreshold) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                future.complete(task.get());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+        return CompletableFuture.supplyAsync(task, pool);
+    }
+
+    private static void plan(Writes writes, BlockPlanner planner) {
+        Segment root = new Segment(planner, writes, 0, writes.positions.length);
+        // Only split when running on the pool, small hulls are planned by the caller.
+        if (ForkJoinTask.inForkJoinPool()) {
+            root.invoke();
+        } else {
+            root.compute();
+        }
+    }
+
+    /**
+     * A planned turn: the engine holding its writes, and the rotated hull to install once
+     * the writes are committed.
+     */
+    public static class RotationPlan {
+        final BlockWriteEngine engine;
+        final int sinFactor;
+        final long[] positions;
+        final Long2IntOpenHashMap index;
+        final BlockState[] palette;
+
+        private RotationPlan(BlockWriteEngine engine, int sinFactor, long[] positions, Long2IntOpenHashMap index,
+                             BlockState[] palette) {
+            this.engine = engine;
+            this.sinFactor = sinFactor;
+            this.positions = positions;
+            this.index = index;
+            this.palette = palette;
+        }
+
+        public BlockWriteEngine getEngine() {
+            return engine;
+        }
+    }
+
+    private interface BlockPlanner {
+        void plan(int index, Writes out);
+    }
+
+    // Planned clears and writes, by hull index. Tasks fill in disjoint index ranges.
+    private static class Writes {
+        private static final long NONE = Long.MIN_VALUE;
+
+        final long[] clears;
+        final long[] positions;
+        final BlockState[] states;
+
+        Writes(int size) {
+            clears = new long[size];
+            positions = new long[size];
+            states = new BlockState[size];
+            Arrays.fill(clears, NONE);
+            Arrays.fill(positions, NONE);
+        }
+
+        void clear(int index, long position) {
+            clears[index] = position;
+        }
+
+        void write(int index, long position, BlockState state) {
+            positions[index] = position;
+            states[index] = state;
+        }
+
+        void queueInto(BlockWriteEngine engine, int[] placementOrder) {
+            for (long position : clears) {
+                if (position != NONE) {
+                    engine.clear(BlockPos.getX(position), BlockPos.getY(position), BlockPos.getZ(position));
+                }
+            }
+            for (int i : placementOrder) {
+                long position = positions[i];
+                if (position != NONE) {
+                    engine.queue(BlockPos.getX(position), BlockPos.getY(position), BlockPos.getZ(position), states[i]);
+                }
+            }
+        }
+    }
+
+    private static class Segment extends RecursiveAction {
+        private final BlockPlanner planner;
+        private final Writes writes;
+        private final int from;
+        private final int to;
+
+        Segment(BlockPlanner planner, Writes writes, int from, int to) {
+            this.planner = planner;
+            this.writes = writes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_SIZE && ForkJoinTask.inForkJoinPool()) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Segment(planner, writes, from, middle), new Segment(planner, writes, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                planner.plan(i, writes);
+            }
+        }
+    }
+}
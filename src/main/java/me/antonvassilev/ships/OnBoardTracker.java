@@ -0,0 +1,181 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.util.BoundingBox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Keeps track of the entities standing on or inside a vessel. The hull is summarised as
+ * a bounding box and a per-column map of the lowest and highest hull block, both
+ * relative to the vessel origin, so checking an entity is one map lookup. Players and
+ * new entities are added as they board (see PassengerListener). Before every move or
+ * turn the entities in the bounding box are looked up as well, which catches mobs,
+ * items and vehicles that came on board without an event. That lookup only visits the
+ * entity sections the box overlaps, never the chunks around the hull. Entities are
+ * dropped when a move finds they have left or been removed.
+ */
+public class OnBoardTracker {
+    // Entities up to this many blocks above the highest hull block of a column count as
+    // on board, so players jumping on the deck aren't left behind.
+    private static final int DECK_CLEARANCE = 2;
+    private static final int NO_COLUMN = Integer.MIN_VALUE;
+
+    // Column packed as (x << 32 | z) -> (lowest y << 16) | (highest y & 0xFFFF).
+    private final Long2IntOpenHashMap columns = new Long2IntOpenHashMap();
+    private final LinkedHashSet<Entity> entities = new LinkedHashSet<>();
+    private int minX;
+    private int minY;
+    private int minZ;
+    private int maxX;
+    private int maxY;
+    private int maxZ;
+
+    public OnBoardTracker() {
+        columns.defaultReturnValue(NO_COLUMN);
+    }
+
+    /**
+     * Recomputes the bounding box and deck map. Needs calling whenever the hull changes
+     * shape or rotates; translations don't change them.
+     */
+    public void rebuild(Hull hull) {
+        columns.clear();
+        minX = minY = minZ = Integer.MAX_VALUE;
+        maxX = maxY = maxZ = Integer.MIN_VALUE;
+        for (int i = 0; i < hull.size(); i++) {
+            int x = hull.getX(i);
+            int y = hull.getY(i);
+            int z = hull.getZ(i);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+
+            long column = column(x, z);
+            int span = columns.get(column);
+            if (span == NO_COLUMN) {
+                columns.put(column, pack(y, y));
+            } else {
+                columns.put(column, pack(Math.min(lowest(span), y), Math.max(highest(span), y)));
+            }
+        }
+    }
+
+    /**
+     * Widens the bounding box and deck map to cover one more hull block, relative to the
+     * vessel origin. Removed blocks aren't taken out until the next rebuild, which only
+     * makes the tracker a little generous in the meantime.
+     */
+    public void include(int x, int y, int z) {
+        if (columns.isEmpty()) {
+            minX = maxX = x;
+            minY = maxY = y;
+            minZ = maxZ = z;
+        } else {
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        long column = column(x, z);
+        int span = columns.get(column);
+        if (span == NO_COLUMN) {
+            columns.put(column, pack(y, y));
+        } else {
+            columns.put(column, pack(Math.min(lowest(span), y), Math.max(highest(span), y)));
+        }
+    }
+
+    /**
+     * @return true if the location lies in a hull column, between its lowest block and
+     * just above its highest one
+     */
+    public boolean isOnBoard(Location location, int originX, int originY, int originZ) {
+        int x = location.getBlockX() - originX;
+        int y = location.getBlockY() - originY;
+        int z = location.getBlockZ() - originZ;
+        if (x < minX || x > maxX || z < minZ || z > maxZ || y < minY || y > maxY + DECK_CLEARANCE) {
+            return false;
+        }
+        int span = columns.get(column(x, z));
+        return span != NO_COLUMN && y >= lowest(span) && y <= highest(span) + DECK_CLEARANCE;
+    }
+
+    /**
+     * Starts tracking an entity if it is on board.
+     *
+     * @return true if the entity is on board
+     */
+    public boolean board(Entity entity, int originX, int originY, int originZ) {
+        if (!isOnBoard(entity.getLocation(), originX, originY, originZ)) {
+            return false;
+        }
+        entities.add(entity);
+        return true;
+    }
+
+    /**
+     * Adds the entities on board among those found in the hull's bounding box to the
+     * tracked set.
+     */
+    public void scan(World world, int originX, int originY, int originZ) {
+        if (columns.isEmpty()) {
+            return;
+        }
+        BoundingBox box = new BoundingBox(originX + minX, originY + minY, originZ + minZ,
+                originX + maxX + 1, originY + maxY + 1 + DECK_CLEARANCE, originZ + maxZ + 1);
+        for (Entity entity : world.getNearbyEntities(box)) {
+            board(entity, originX, originY, originZ);
+        }
+    }
+
+    /**
+     * Looks for entities that came on board since the last call, then returns the tracked
+     * entities that are still valid and on board, and forgets the rest.
+     */
+    public List<Entity> collect(World world, int originX, int originY, int originZ) {
+        scan(world, originX, originY, originZ);
+        List<Entity> onBoard = new ArrayList<>(entities.size());
+        Iterator<Entity> it = entities.iterator();
+        while (it.hasNext()) {
+            Entity entity = it.next();
+            if (entity.isValid() && isOnBoard(entity.getLocation(), originX, originY, originZ)) {
+                onBoard.add(entity);
+            } else {
+                it.remove();
+            }
+        }
+        return onBoard;
+    }
+
+    public int size() {
+        return entities.size();
+    }
+
+    private static long column(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private static int pack(int lowest, int highest) {
+        return (lowest << 16) | (highest & 0xFFFF);
+    }
+
+    private static int lowest(int span) {
+        return span >> 16;
+    }
+
+    private static int highest(int span) {
+        return (short) span;
+    }
+}
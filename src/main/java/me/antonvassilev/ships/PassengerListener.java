@@ -0,0 +1,82 @@
+package me.antonvassilev.ships;
+
+import org.bukkit.Location;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.hanging.HangingPlaceEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+
+/**
+ * Tells vessels about entities boarding them, so their OnBoardTracker doesn't have to
+ * search for passengers when the vessel moves. Entities leaving a vessel are dropped
+ * by the tracker itself on the next move.
+ */
+public class PassengerListener implements Listener {
+    private final VesselIndex index;
+
+    public PassengerListener(VesselIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Only looks at moves that change the block the player is in, which is one index
+     * lookup for the block under their feet and one for the block they are in.
+     *
+     * @param event PlayerMoveEvent
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        if (to == null || (from.getBlockX() == to.getBlockX() &&
+                from.getBlockY() == to.getBlockY() &&
+                from.getBlockZ() == to.getBlockZ() &&
+                from.getWorld() == to.getWorld())) {
+            return;
+        }
+        Vessel vessel = vesselAt(to);
+        if (vessel != null) {
+            vessel.board(event.getPlayer());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        onPlayerMove(event);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitySpawn(EntitySpawnEvent event) {
+        Vessel vessel = vesselAt(event.getLocation());
+        if (vessel != null) {
+            vessel.board(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onHangingPlace(HangingPlaceEvent event) {
+        // Item frames and paintings hang off the block they were placed against.
+        int entry = index.lookup(event.getBlock());
+        if (entry != VesselIndex.NOT_INDEXED) {
+            Vessel vessel = index.getVessel(entry);
+            if (vessel != null) {
+                vessel.board(event.getEntity());
+            }
+        }
+    }
+
+    // The vessel whose hull is under or at the location, or null.
+    private Vessel vesselAt(Location location) {
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        int entry = index.lookup(location.getWorld(), x, y - 1, z);
+        if (entry == VesselIndex.NOT_INDEXED) {
+            entry = index.lookup(location.getWorld(), x, y, z);
+        }
+        return entry == VesselIndex.NOT_INDEXED ? null : index.getVessel(entry);
+    }
+}
@@ -0,0 +1,220 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_18_R2.CraftWorld;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.RegisteredListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Suppresses block physics inside the boxes of vessels that are being moved. While a
+ * move is written, possibly over several ticks, the hull is partly cleared: without the
+ * quarantine torches pop off, sand falls and water flows into the gap, only for all of
+ * it to be overwritten. Once the move is committed, settle() runs a single physics pass
+ * over the cells bordering the hull and the cells it left.
+ *
+ * The event handlers are only registered while there is a zone, so physics and fluid
+ * events elsewhere don't pass through them when no vessel is moving.
+ */
+public class PhysicsQuarantine implements Listener {
+    private static final Direction[] DIRECTIONS = Direction.values();
+    private static final PhysicsQuarantine LISTENER = new PhysicsQuarantine();
+    private static final List<Zone> zones = new ArrayList<>();
+    // Handlers of LISTENER, created once so that registering them is cheap.
+    private static Map<Class<? extends Event>, Set<RegisteredListener>> handlers = Collections.emptyMap();
+
+    private PhysicsQuarantine() {
+    }
+
+    /**
+     * Sets the plugin the event handlers are registered for. Until it is called, zones
+     * are tracked but physics isn't suppressed.
+     *
+     * @param owningPlugin Plugin
+     */
+    public static void configure(Plugin owningPlugin) {
+        handlers = owningPlugin.getPluginLoader().createRegisteredListeners(LISTENER, owningPlugin);
+    }
+
+    /**
+     * Starts suppressing physics in a box, bounds inclusive.
+     *
+     * @return the zone, to be released once the move is committed
+     */
+    public static Zone quarantine(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        Zone zone = new Zone(world.getUID(), minX, minY, minZ, maxX, maxY, maxZ);
+        if (zones.isEmpty()) {
+            for (Map.Entry<Class<? extends Event>, Set<RegisteredListener>> entry : handlers.entrySet()) {
+                handlerList(entry.getKey()).registerAll(entry.getValue());
+            }
+        }
+        zones.add(zone);
+        return zone;
+    }
+
+    private static void release(Zone zone) {
+        if (zones.remove(zone) && zones.isEmpty()) {
+            for (Class<? extends Event> type : handlers.keySet()) {
+                handlerList(type).unregister(LISTENER);
+            }
+        }
+    }
+
+    // Only the events handled below.
+    private static HandlerList handlerList(Class<? extends Event> type) {
+        return type == BlockFromToEvent.class ? BlockFromToEvent.getHandlerList() : BlockPhysicsEvent.getHandlerList();
+    }
+
+    /**
+     * Starts suppressing physics in the box covering the hull at both origins.
+     */
+    public static Zone quarantine(World world, Hull hull, int fromX, int fromY, int fromZ, int toX, int toY, int toZ) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int i = 0; i < hull.size(); i++) {
+            minX = Math.min(minX, hull.getX(i));
+            minY = Math.min(minY, hull.getY(i));
+            minZ = Math.min(minZ, hull.getZ(i));
+            maxX = Math.max(maxX, hull.getX(i));
+            maxY = Math.max(maxY, hull.getY(i));
+            maxZ = Math.max(maxZ, hull.getZ(i));
+        }
+        return quarantine(world,
+                minX + Math.min(fromX, toX), minY + Math.min(fromY, toY), minZ + Math.min(fromZ, toZ),
+                maxX + Math.max(fromX, toX), maxY + Math.max(fromY, toY), maxZ + Math.max(fromZ, toZ));
+    }
+
+    /**
+     * Runs one physics pass after a move: every cell the hull left and every hull block
+     * facing a non-hull cell notifies its neighbours, so blocks outside the hull react
+     * to the final state exactly once.
+     *
+     * @param world   World
+     * @param hull    Hull at its new position
+     * @param originX int world x of the vessel origin
+     * @param originY int world y of the vessel origin
+     * @param originZ int world z of the vessel origin
+     * @param vacated LongCollection world positions, packed with BlockPos.asLong, the
+     *                hull no longer covers
+     */
+    public static void settle(World world, Hull hull, int originX, int originY, int originZ,
+                              LongCollection vacated) {
+        LongOpenHashSet boundary = new LongOpenHashSet(vacated);
+        for (int i = 0; i < hull.size(); i++) {
+            int x = hull.getX(i);
+            int y = hull.getY(i);
+            int z = hull.getZ(i);
+            for (Direction direction : DIRECTIONS) {
+                if (hull.indexOf(x + direction.getStepX(), y + direction.getStepY(), z + direction.getStepZ()) == -1) {
+                    boundary.add(BlockPos.asLong(originX + x, originY + y, originZ + z));
+                    break;
+                }
+            }
+        }
+
+        settleCells(world, boundary);
+    }
+
+    /**
+     * Makes each of the given cells notify its neighbours, once.
+     *
+     * @param cells LongCollection world positions packed with BlockPos.asLong
+     */
+    public static void settleCells(World world, LongCollection cells) {
+        ServerLevel level = ((CraftWorld) world).getHandle();
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+        LongIterator it = cells.iterator();
+        while (it.hasNext()) {
+            pos.set(it.nextLong());
+            if (!level.isLoaded(pos)) {
+                continue;
+            }
+            BlockState state = level.getBlockState(pos);
+            state.updateNeighbourShapes(level, pos, Block.UPDATE_ALL);
+            level.updateNeighborsAt(pos, state.getBlock());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onPhysics(BlockPhysicsEvent event) {
+        if (isQuarantined(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    public void onFlow(BlockFromToEvent event) {
+        if (isQuarantined(event.getToBlock())) {
+            event.setCancelled(true);
+        }
+    }
+
+    private static boolean isQuarantined(org.bukkit.block.Block block) {
+        if (zones.isEmpty()) {
+            return false;
+        }
+        UUID worldId = block.getWorld().getUID();
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+        for (Zone zone : zones) {
+            if (zone.contains(worldId, x, y, z)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A box in which physics is suppressed until it is released.
+     */
+    public static class Zone {
+        private final UUID worldId;
+        private final int minX;
+        private final int minY;
+        private final int minZ;
+        private final int maxX;
+        private final int maxY;
+        private final int maxZ;
+
+        private Zone(UUID worldId, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.worldId = worldId;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+
+        boolean contains(UUID worldId, int x, int y, int z) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ
+                    && this.worldId.equals(worldId);
+        }
+
+        public void release() {
+            PhysicsQuarantine.release(this);
+        }
+    }
+}
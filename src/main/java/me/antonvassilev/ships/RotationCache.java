@@ -0,0 +1,66 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.objects.Reference2ObjectLinkedOpenHashMap;
+import net.minecraft.world.level.block.Rotation;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.craftbukkit.v1_18_R2.block.data.CraftBlockData;
+
+/**
+ * Bounded cache of the quarter turn rotations of block states. Each entry holds both the
+ * left and the right rotation of a source state, computed once through the block's own
+ * rotate method, so every block type that can be rotated by a structure (stairs, fences
+ * and other multiple facing blocks, rails, signs, logs, ...) is covered. The least
+ * recently used entries are evicted once the cache is full.
+ *
+ * NMS block states are interned, one instance per block and property combination, so
+ * entries are keyed by identity and a lookup allocates nothing.
+ *
+ * Synchronized, as turns are planned on the MovePlanner pool.
+ */
+public class RotationCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+    // Insertion order is kept as recency order by moving every hit to the end.
+    private final Reference2ObjectLinkedOpenHashMap<BlockState, BlockState[]> rotations;
+
+    public RotationCache(int capacity) {
+        this.capacity = capacity;
+        this.rotations = new Reference2ObjectLinkedOpenHashMap<>(capacity);
+    }
+
+    /**
+     * Returns the NMS block state turned a quarter turn.
+     *
+     * @param state BlockState the source block state
+     * @param left  boolean true for a left (clockwise) turn, false for a right turn
+     * @return rotated block state
+     */
+    public synchronized BlockState rotate(BlockState state, boolean left) {
+        BlockState[] rotated = rotations.getAndMoveToLast(state);
+        if (rotated == null) {
+            rotated = new BlockState[]{
+                    state.rotate(Rotation.CLOCKWISE_90),
+                    state.rotate(Rotation.COUNTERCLOCKWISE_90)
+            };
+            rotations.putAndMoveToLast(state, rotated);
+            if (rotations.size() > capacity) {
+                rotations.removeFirst();
+            }
+        }
+        return rotated[left ? 0 : 1];
+    }
+
+    /**
+     * Same as rotate(BlockState, boolean), for Bukkit block data. The returned block data
+     * is a new instance.
+     */
+    public BlockData rotate(BlockData blockData, boolean left) {
+        return CraftBlockData.fromData(rotate(((CraftBlockData) blockData).getState(), left));
+    }
+
+    public synchronized int size() {
+        return rotations.size();
+    }
+}
@@ -0,0 +1,180 @@
+package me.antonvassilev.ships;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counters and latency histograms for the hot paths of the plugin. Every vessel has its
+ * own instance, which also feeds the global one, so costs can be looked at per ship and
+ * for the whole server. Histograms use power of two buckets, so recording a sample is a
+ * couple of array writes and reports give the bucket upper bound as the percentile.
+ *
+ * Only written from the main thread; asynchronous work measures its own duration and
+ * records it once it's back on the main thread.
+ */
+public class ShipStats {
+    public enum Timing {
+        DISCOVERY("discovery"),
+        MOVE_PLAN("move plan"),
+        MOVE_WRITE("move write"),
+        ROTATE("rotate"),
+        ENTITY_TRANSPORT("entity transport"),
+        CLICK("sign click"),
+        // From the tick a move or turn became due until the scheduler started it.
+        QUEUE_WAIT("queue wait"),
+        SCHEDULER_TICK("scheduler tick per world");
+
+        private final String label;
+
+        Timing(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Timing[] TIMINGS = Timing.values();
+    private static final ShipStats global = new ShipStats(null);
+    // Log one in this many sampled operations, 0 disables debug sampling.
+    private static int sampleEvery = 0;
+    private static long sampleCounter = 0;
+
+    private final ShipStats parent;
+    private final Histogram[] timings = new Histogram[TIMINGS.length];
+    // Blocks written by the motion scheduler in each tick it had work.
+    private final Histogram blocksPerTick = new Histogram();
+    // Vessels waiting for the motion scheduler in a world, sampled every tick it had work.
+    private final Histogram queueDepth = new Histogram();
+    private long blocksWritten = 0;
+    private long entityTeleports = 0;
+
+    private ShipStats(ShipStats parent) {
+        this.parent = parent;
+        for (int i = 0; i < timings.length; i++) {
+            timings[i] = new Histogram();
+        }
+    }
+
+    public static ShipStats global() {
+        return global;
+    }
+
+    /**
+     * @return stats for a single vessel, which also count towards the global stats
+     */
+    public static ShipStats forVessel() {
+        return new ShipStats(global);
+    }
+
+    /**
+     * @param every int log one in every so many sampled operations, 0 to disable
+     */
+    public static void setSampleEvery(int every) {
+        sampleEvery = Math.max(0, every);
+    }
+
+    /**
+     * @return true if the current operation should be logged in detail
+     */
+    public static boolean sample() {
+        return sampleEvery > 0 && sampleCounter++ % sampleEvery == 0;
+    }
+
+    /**
+     * Records the time since startNanos, taken with System.nanoTime.
+     */
+    public void time(Timing timing, long startNanos) {
+        record(timing, System.nanoTime() - startNanos);
+    }
+
+    public void record(Timing timing, long nanos) {
+        timings[timing.ordinal()].add(nanos);
+        if (parent != null) {
+            parent.record(timing, nanos);
+        }
+    }
+
+    public void addBlocksWritten(int blocks) {
+        blocksWritten += blocks;
+        if (parent != null) {
+            parent.addBlocksWritten(blocks);
+        }
+    }
+
+    public void addEntityTeleports(int teleports) {
+        entityTeleports += teleports;
+        if (parent != null) {
+            parent.addEntityTeleports(teleports);
+        }
+    }
+
+    public void recordTick(int blocks) {
+        blocksPerTick.add(blocks);
+    }
+
+    public void recordQueueDepth(int vessels) {
+        queueDepth.add(vessels);
+    }
+
+    /**
+     * @return human readable lines describing the recorded stats
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (Timing timing : TIMINGS) {
+            Histogram histogram = timings[timing.ordinal()];
+            if (histogram.count == 0) {
+                continue;
+            }
+            lines.add(String.format("%s: n=%d avg=%.2fms p50<%.2fms p99<%.2fms max=%.2fms",
+                    timing.label, histogram.count,
+                    millis(histogram.total / histogram.count),
+                    millis(histogram.percentile(0.5)),
+                    millis(histogram.percentile(0.99)),
+                    millis(histogram.max)));
+        }
+        lines.add("blocks written: " + blocksWritten + ", entity teleports: " + entityTeleports);
+        if (blocksPerTick.count > 0) {
+            lines.add(String.format("blocks per busy tick: n=%d avg=%d p99<%d max=%d",
+                    blocksPerTick.count, blocksPerTick.total / blocksPerTick.count,
+                    blocksPerTick.percentile(0.99), blocksPerTick.max));
+        }
+        if (queueDepth.count > 0) {
+            lines.add(String.format("scheduler queue depth: n=%d avg=%.1f p99<%d max=%d",
+                    queueDepth.count, (double) queueDepth.total / queueDepth.count,
+                    queueDepth.percentile(0.99), queueDepth.max));
+        }
+        return lines;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static class Histogram {
+        // Bucket b counts values in [2^(b-1), 2^b), bucket 0 counts zeros.
+        final long[] buckets = new long[65];
+        long count = 0;
+        long total = 0;
+        long max = 0;
+
+        void add(long value) {
+            value = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(value)]++;
+            count++;
+            total += value;
+            max = Math.max(max, value);
+        }
+
+        // Upper bound of the bucket holding the given fraction of the samples.
+        long percentile(double fraction) {
+            long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= target) {
+                    return b == 0 ? 0 : Math.min(max, b >= 63 ? Long.MAX_VALUE : 1L << b);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -2,31 +2,81 @@ package me.antonvassilev.ships;
 
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
 import java.util.HashMap;
 
 public final class Ships extends JavaPlugin {
 
     // Keep a map of vessels keyed by their name.
-    // The name will be present in the vessels' blocks metadata.
     private static final HashMap<String, Vessel> vessels = new HashMap<>();
+    // Block position -> owning vessel, used by the event handlers.
+    private static final VesselIndex vesselIndex = new VesselIndex();
+    private VesselStore vesselStore;
+    private MoveJournal journal;
+    private VesselFleet fleet;
 
     @Override
     public void onEnable() {
         // Plugin startup logic
         this.getLogger().info("Ships plugin has started, hello!");
+        this.saveDefaultConfig();
+        ShipStats.setSampleEvery(getConfig().getInt("debug.sample-every"));
+        LightingQueue.configure(this, getConfig().getInt("lighting.delay-ticks"));
+        MovePlanner.configure(getConfig().getInt("planning.threads"),
+                getConfig().getInt("planning.parallel-threshold"));
+        PhysicsQuarantine.configure(this);
+        vesselStore = new VesselStore(new File(getDataFolder(), "vessels.dat"), getLogger());
+        journal = new MoveJournal(new File(getDataFolder(), "journal.dat"), getLogger());
+        Vessel.setJournal(journal);
+        fleet = new VesselFleet(this, vessels, vesselIndex, vesselStore);
+        fleet.load(journal);
 
         this.getServer()
                 .getPluginManager()
-                .registerEvents(new SignWriteEventHandler(this, vessels), this);
+                .registerEvents(new SignWriteEventHandler(this, vessels, vesselIndex, fleet), this);
         this.getServer()
                 .getPluginManager()
-                .registerEvents(new SignClickEventHandler(this, vessels), this);
-        this.getCommand("info").setExecutor(new CommandInfo(this));
+                .registerEvents(new SignClickEventHandler(this, vesselIndex), this);
+        this.getServer()
+                .getPluginManager()
+                .registerEvents(fleet, this);
+        this.getServer()
+                .getPluginManager()
+                .registerEvents(new PassengerListener(vesselIndex), this);
+        this.getServer()
+                .getPluginManager()
+                .registerEvents(new HullListener(vesselIndex), this);
+        this.getServer()
+                .getPluginManager()
+                .registerEvents(journal, this);
+        this.getCommand("info").setExecutor(new CommandInfo(this, vessels, fleet));
+
+        new VesselMotionScheduler(vessels,
+                getConfig().getInt("motion.blocks-per-tick"),
+                getConfig().getInt("motion.step-interval"),
+                getConfig().getInt("network.resync-interval"),
+                getConfig().getDouble("motion.tick-budget-ms"))
+                .runTaskTimer(this, 1L, 1L);
+
+        long flushInterval = getConfig().getLong("storage.flush-interval");
+        this.getServer().getScheduler().runTaskTimer(this,
+                () -> vesselStore.flush(vessels.values()), flushInterval, flushInterval);
     }
 
     @Override
     public void onDisable() {
         // Plugin shutdown logic
+        // Finish any move that is still being spread over ticks before saving.
+        for (Vessel vessel : vessels.values()) {
+            vessel.continueMove(Integer.MAX_VALUE);
+            if (vessel.isGhostSailing()) {
+                // Proxies aren't saved, so the hull has to be written back as blocks.
+                vessel.setSailing(false);
+            }
+        }
+        vesselStore.close(vessels.values());
+        journal.close();
+        MovePlanner.shutdown();
         this.getLogger().info("Ships plugin shutting off, goodbye!");
     }
 }
@@ -1,28 +1,25 @@
 package me.antonvassilev.ships;
 
-import com.google.common.collect.ImmutableList;
+import org.bukkit.block.Block;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.plugin.Plugin;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.EnumSet;
 
 public class SignClickEventHandler implements Listener {
 
-    private static final List<String> CLICKABLE_SIGNS_BY_METADATA_VALUES =
-            ImmutableList.of(
-                    Vessel.EngineSign.METADATA_VALUE, Vessel.SteeringSign.METADATA_VALUE);
+    private static final EnumSet<Vessel.ShipSignType> CLICKABLE_SIGNS =
+            EnumSet.of(Vessel.ShipSignType.LICENSE, Vessel.ShipSignType.ENGINE, Vessel.ShipSignType.STEERING,
+                    Vessel.ShipSignType.ALTITUDE);
     private final Plugin owningPlugin;
-    private final HashMap<String, Vessel> vessels;
+    private final VesselIndex index;
 
-    public SignClickEventHandler(Plugin owningPlugin, HashMap<String, Vessel> vessels) {
+    public SignClickEventHandler(Plugin owningPlugin, VesselIndex index) {
         this.owningPlugin = owningPlugin;
-        this.vessels = vessels;
+        this.index = index;
     }
 
     /**
@@ -35,35 +32,52 @@ public class SignClickEventHandler implements Listener {
     public void onInteract(PlayerInteractEvent event) {
         if (event.getAction() == Action.LEFT_CLICK_BLOCK || event.getAction() == Action.RIGHT_CLICK_BLOCK) {
             // Make sure the block we clicked is a ship sign.
-            Optional<String> signType = ShipUtils.getMetadataStringFromBlock(
-                    Vessel.VESSEL_CONTROL_TYPE_METADATA_KEY,
-                    Objects.requireNonNull(event.getClickedBlock()), owningPlugin);
-            if (!signType.isPresent() ||
-                    !CLICKABLE_SIGNS_BY_METADATA_VALUES.contains(signType.get())) {
+            Block clicked = event.getClickedBlock();
+            if (clicked == null) {
                 return;
             }
-            owningPlugin.getLogger().info(signType.get());
-            // Find the vessel by the name extracted from engine sign metadata and
-            // then handle the type of sign.
-            ShipUtils.getMetadataStringFromBlock(Vessel.VESSEL_NAME_METADATA_KEY,
-                    event.getClickedBlock(), owningPlugin)
-                    .map(vessels::get)
-                    .ifPresent(vessel -> handleShipSign(event, signType.get(), vessel));
+            int entry = index.lookup(clicked);
+            if (entry == VesselIndex.NOT_INDEXED) {
+                return;
+            }
+            Vessel.ShipSignType signType = VesselIndex.getSignType(entry);
+            if (signType == null && Vessel.isAltitudeSign(clicked)) {
+                // Altitude signs are plain hull blocks, told apart by their text.
+                signType = Vessel.ShipSignType.ALTITUDE;
+            }
+            if (signType == null || !CLICKABLE_SIGNS.contains(signType)) {
+                return;
+            }
+            // The index entry also names the vessel the sign belongs to.
+            Vessel vessel = index.getVessel(entry);
+            if (vessel != null) {
+                long start = System.nanoTime();
+                handleShipSign(event, signType, vessel);
+                vessel.getStats().time(ShipStats.Timing.CLICK, start);
+            }
         }
     }
 
     private void handleLicenseSign(Vessel vessel, PlayerInteractEvent event) {
-        // Do nothing
+        // Right clicking the license sign switches how the ship sails.
+        if (event.getAction() != Action.RIGHT_CLICK_BLOCK) {
+            return;
+        }
+        Vessel.MotionMode mode = vessel.getMotionMode() == Vessel.MotionMode.GHOST
+                ? Vessel.MotionMode.BLOCKS
+                : Vessel.MotionMode.GHOST;
+        vessel.setMotionMode(mode);
+        event.getPlayer().sendMessage(vessel.getName() + " now sails in " + mode.name().toLowerCase() + " mode");
     }
 
     private void handleSteeringSign(Vessel vessel, PlayerInteractEvent event) {
         switch (event.getAction()) {
             case LEFT_CLICK_BLOCK: {
-                vessel.rotateRight();
+                vessel.requestTurn(false);
                 break;
             }
             case RIGHT_CLICK_BLOCK: {
-                vessel.rotateLeft();
+                vessel.requestTurn(true);
             }
             default:
                 break;
@@ -73,7 +87,12 @@ public class SignClickEventHandler implements Listener {
     private void handleEngineSign(Vessel vessel, PlayerInteractEvent event) {
         switch (event.getAction()) {
             case RIGHT_CLICK_BLOCK: {
-                vessel.moveForward();
+                // Sneaking nudges the ship forward a single step, otherwise the engine
+                // is switched on or off and the motion scheduler keeps the ship sailing.
+                if (event.getPlayer().isSneaking())
+                    vessel.requestStep();
+                else
+                    vessel.toggleSailing(event.getPlayer());
                 break;
             }
             case LEFT_CLICK_BLOCK: {
@@ -88,23 +107,40 @@ public class SignClickEventHandler implements Listener {
         }
     }
 
-    private void handleShipSign(PlayerInteractEvent event, String signType, Vessel vessel) {
-        Optional<Vessel.ShipSignType> type = Vessel.ShipSignType.metadataStringToShipSignType(signType);
-        type.ifPresent(shipSignType -> {
-            switch (shipSignType) {
-                case LICENSE:
-                    handleLicenseSign(vessel, event);
-                    break;
-                case STEERING:
-                    handleSteeringSign(vessel, event);
-                    break;
-                case ENGINE:
-                    handleEngineSign(vessel, event);
-                    break;
-                case UNKNOWN:
-                default:
-                    owningPlugin.getLogger().info("Ship control sign with unknown type clicked");
+    private void handleAltitudeSign(Vessel vessel, PlayerInteractEvent event) {
+        // Sneaking climbs or descends as many blocks as the engine is set to, otherwise one.
+        int blocks = event.getPlayer().isSneaking() ? Math.max(1, vessel.getVelocity()) : 1;
+        switch (event.getAction()) {
+            case RIGHT_CLICK_BLOCK: {
+                vessel.requestClimb(blocks);
+                break;
+            }
+            case LEFT_CLICK_BLOCK: {
+                vessel.requestClimb(-blocks);
+                break;
             }
-        });
+            default:
+                break;
+        }
+    }
+
+    private void handleShipSign(PlayerInteractEvent event, Vessel.ShipSignType signType, Vessel vessel) {
+        switch (signType) {
+            case LICENSE:
+                handleLicenseSign(vessel, event);
+                break;
+            case STEERING:
+                handleSteeringSign(vessel, event);
+                break;
+            case ENGINE:
+                handleEngineSign(vessel, event);
+                break;
+            case ALTITUDE:
+                handleAltitudeSign(vessel, event);
+                break;
+            case UNKNOWN:
+            default:
+                owningPlugin.getLogger().info("Ship control sign with unknown type clicked");
+        }
     }
 }
@@ -4,14 +4,18 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.TextComponent;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.WallSign;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.SignChangeEvent;
 import org.bukkit.plugin.Plugin;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 
@@ -21,10 +25,17 @@ public class SignWriteEventHandler implements Listener {
 
     private final Plugin owningPlugin;
     private final HashMap<String, Vessel> vessels;
+    private final VesselIndex index;
+    private final VesselFleet fleet;
+    // Names of the vessels being discovered, taken until their discovery completes.
+    private final Set<String> discovering = new HashSet<>();
 
-    SignWriteEventHandler(Plugin owningPlugin, HashMap<String, Vessel> vessels) {
+    SignWriteEventHandler(Plugin owningPlugin, HashMap<String, Vessel> vessels, VesselIndex index,
+                          VesselFleet fleet) {
         this.owningPlugin = owningPlugin;
         this.vessels = vessels;
+        this.index = index;
+        this.fleet = fleet;
     }
 
     /**
@@ -55,36 +66,80 @@ public class SignWriteEventHandler implements Listener {
             return null;
         });
         name.ifPresent(s -> {
-            vessels.put(s, new Vessel(owningPlugin, s, eventBlock));
-            owningPlugin.getLogger().info("Created new vessel: " + s);
+            // The store, the journal and the index all tell vessels apart by name.
+            if (isTaken(s)) {
+                owningPlugin.getLogger().warning("A vessel named " + s + " already exists");
+                return;
+            }
+            discovering.add(s);
+            Vessel.discover(owningPlugin, index, s, eventBlock).whenComplete((vessel, error) -> {
+                discovering.remove(s);
+                if (error != null) {
+                    owningPlugin.getLogger().warning("Failed to create vessel " + s + ": " + error.getMessage());
+                    return;
+                }
+                if (fleet.isRegistered(s)) {
+                    // Checked again, in case a vessel of that name came back meanwhile.
+                    owningPlugin.getLogger().warning("A vessel named " + s + " already exists");
+                    vessel.deactivate();
+                    return;
+                }
+                vessels.put(s, vessel);
+                owningPlugin.getLogger().info("Created new vessel: " + s);
+            });
         });
     }
 
+    private boolean isTaken(String name) {
+        return discovering.contains(name) || fleet.isRegistered(name);
+    }
+
     private void handleEngineSign(Block eventBlock, List<Component> signComponents) {
-        // TODO: This just gets the metadata from the block the sign was placed on.
-        // This will break horribly if the engine sign isn't placed on an existing vessel.
-        Optional<String> name = ShipUtils.getMetadataStringFromBlock(
-                Vessel.VESSEL_NAME_METADATA_KEY, eventBlock.getRelative(BlockFace.DOWN), owningPlugin);
-        name.ifPresent(s -> {
-            Vessel vessel = vessels.get(s);
-            owningPlugin.getLogger().info("Adding engine sign to vessel: " + s);
-            vessel.addEngineSign(eventBlock);
-        });
+        Vessel vessel = vesselAttached(eventBlock);
+        if (vessel == null) {
+            return;
+        }
+        owningPlugin.getLogger().info("Adding engine sign to vessel: " + vessel.getName());
+        vessel.addEngineSign(eventBlock);
     }
 
     private void handleSteeringSign(Block eventBlock, List<Component> signComponents) {
-        Optional<String> name = ShipUtils.getMetadataStringFromBlock(
-                Vessel.VESSEL_NAME_METADATA_KEY, eventBlock.getRelative(BlockFace.DOWN), owningPlugin);
+        Vessel vessel = vesselAttached(eventBlock);
+        if (vessel == null) {
+            return;
+        }
         Optional<String> direction = signComponents.stream().findFirst().map(component -> {
             if (component instanceof TextComponent)
                 return ((TextComponent) component).content();
             return null;
         });
-        name.ifPresent(s -> direction.ifPresent(d -> {
-            Vessel vessel = vessels.get(s);
-            owningPlugin.getLogger().info("Adding steering sign to vessel: " + s);
+        direction.ifPresent(d -> {
+            owningPlugin.getLogger().info("Adding steering sign to vessel: " + vessel.getName());
             vessel.addSteeringSign(eventBlock, d);
-        }));
+        });
+    }
+
+    private void handleAltitudeSign(Block eventBlock) {
+        // The sign is told apart by its text when clicked, so it only has to be on the hull.
+        Vessel vessel = vesselAttached(eventBlock);
+        if (vessel == null) {
+            return;
+        }
+        owningPlugin.getLogger().info("Adding altitude sign to vessel: " + vessel.getName());
+    }
+
+    // The vessel owning the block the sign hangs on: the block behind a wall sign, or the
+    // block under a standing one.
+    private Vessel vesselAttached(Block eventBlock) {
+        BlockData data = eventBlock.getBlockData();
+        BlockFace attachedFace = data instanceof WallSign
+                ? ((WallSign) data).getFacing().getOppositeFace()
+                : BlockFace.DOWN;
+        int entry = index.lookup(eventBlock.getRelative(attachedFace));
+        if (entry == VesselIndex.NOT_INDEXED) {
+            return null;
+        }
+        return index.getVessel(entry);
     }
 
     // If a ship sign is created, dispatch the event to the right handler for the type
@@ -109,6 +164,10 @@ public class SignWriteEventHandler implements Listener {
                     owningPlugin.getLogger().info("New Engine Sign");
                     handleEngineSign(eventBlock, components);
                     break;
+                case ALTITUDE:
+                    owningPlugin.getLogger().info("New Altitude Sign");
+                    handleAltitudeSign(eventBlock);
+                    break;
                 case UNKNOWN:
                     owningPlugin.getLogger().info("Unknown Ship Sign");
             }
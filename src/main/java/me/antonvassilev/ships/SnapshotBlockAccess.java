@@ -0,0 +1,98 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_18_R2.block.data.CraftBlockData;
+
+/**
+ * Read-only access to a set of chunk snapshots, safe to use off the main thread. Chunks
+ * that weren't snapshotted read as unavailable. More chunks can be added from the main
+ * thread between reads, for searches that only find out as they go which chunks they
+ * need.
+ */
+public class SnapshotBlockAccess implements BlockAccess {
+    private final Long2ObjectOpenHashMap<ChunkSnapshot> snapshots = new Long2ObjectOpenHashMap<>();
+    // Chunks that were asked for, including those that weren't loaded.
+    private final LongOpenHashSet requested = new LongOpenHashSet();
+    private final int minY;
+    private final int maxY;
+
+    private SnapshotBlockAccess(World world) {
+        this.minY = world.getMinHeight();
+        this.maxY = world.getMaxHeight();
+    }
+
+    /**
+     * @param world World the snapshots are taken from, none to begin with
+     */
+    public static SnapshotBlockAccess empty(World world) {
+        return new SnapshotBlockAccess(world);
+    }
+
+    /**
+     * Snapshots the given chunks, where loaded. Must be called on the main thread.
+     *
+     * @param world  World
+     * @param chunks LongSet chunk keys, as ChunkPos.asLong
+     */
+    public static SnapshotBlockAccess of(World world, LongSet chunks) {
+        SnapshotBlockAccess access = new SnapshotBlockAccess(world);
+        access.add(world, chunks);
+        return access;
+    }
+
+    /**
+     * Snapshots more chunks, where loaded. Must be called on the main thread, while no
+     * other thread reads from the access.
+     *
+     * @param world  World the access was created for
+     * @param chunks LongSet chunk keys, as ChunkPos.asLong
+     */
+    public void add(World world, LongSet chunks) {
+        LongIterator it = chunks.iterator();
+        while (it.hasNext()) {
+            long chunk = it.nextLong();
+            int cx = ChunkPos.getX(chunk);
+            int cz = ChunkPos.getZ(chunk);
+            requested.add(chunk);
+            if (world.isChunkLoaded(cx, cz)) {
+                snapshots.put(chunk, world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false));
+            }
+        }
+    }
+
+    /**
+     * @return true if the chunk was asked for already, whether it was loaded or not
+     */
+    public boolean isRequested(long chunk) {
+        return requested.contains(chunk);
+    }
+
+    @Override
+    public BlockState getBlockState(int x, int y, int z) {
+        if (y < minY || y >= maxY) {
+            return null;
+        }
+        ChunkSnapshot snapshot = snapshots.get(ChunkPos.asLong(x >> 4, z >> 4));
+        if (snapshot == null) {
+            return null;
+        }
+        return ((CraftBlockData) snapshot.getBlockData(x & 15, y, z & 15)).getState();
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getMaxY() {
+        return maxY;
+    }
+}
@@ -1,24 +1,43 @@
 package me.antonvassilev.ships;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongLists;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortSet;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.entity.SignBlockEntity;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.data.*;
-import org.bukkit.block.data.type.RedstoneWire;
-import org.bukkit.block.data.type.Sign;
-import org.bukkit.block.data.type.Switch;
+import org.bukkit.craftbukkit.v1_18_R2.CraftWorld;
 import org.bukkit.craftbukkit.v1_18_R2.block.CraftBlockState;
 import org.bukkit.craftbukkit.v1_18_R2.block.CraftSign;
+import org.bukkit.craftbukkit.v1_18_R2.block.data.CraftBlockData;
 import org.bukkit.entity.Entity;
-import org.bukkit.metadata.FixedMetadataValue;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.util.Vector;
 
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 import static java.lang.Math.max;
@@ -26,47 +45,181 @@ import static java.lang.Math.min;
 
 
 public class Vessel {
-    // Metadata key constants
-    public static final String VESSEL_NAME_METADATA_KEY = "VESSEL_NAME";
-    public static final String VESSEL_CONTROL_TYPE_METADATA_KEY = "VESSEL_CONTROL_TYPE";
-    final private static int MAX_VESSEL_SZ = 5000;
-    // size of workList -> max number of blocks to check for largest case (single column of blocks)
-    final private static int MAX_SEARCH_SPACE = (MAX_VESSEL_SZ * 4) + 2;
+    final static int MAX_VESSEL_SZ = 5000;
+    // How far, in blocks, the helmsman of a ghost voyage may stray from the engine sign.
+    private static final int HELM_RANGE = 4;
+    private static final BlockFace[] CONNECTING_FACES = {
+            BlockFace.UP, BlockFace.DOWN, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST
+    };
+    // Shared by all vessels, hulls tend to be built from the same few block types.
+    private static final RotationCache rotationCache = new RotationCache(RotationCache.DEFAULT_CAPACITY);
+    private static MoveJournal journal = null;
     private final Plugin owningPlugin;
+    private final VesselIndex index;
+    private final int id;
     private final World world;
     private final String name;
-    private final ArrayList<BlockInfo> m_blocks = new ArrayList<BlockInfo>();
+    private final Hull hull = new Hull();
     private final LicenseSign licenseSign;
     private SteeringSign steeringSign;
     private EngineSign engineSign;
     private int xBlockOffset = 0;
     private int yBlockOffset = 0;
     private int zBlockOffset = 0;
-
-    Vessel(Plugin owningPlugin, String name, Block startBlock) {
+    // Motion state driven by the VesselMotionScheduler.
+    private boolean sailing = false;
+    private boolean stepRequested = false;
+    private Rotation turnRequested = null;
+    // Blocks to climb (positive) or descend (negative) once the scheduler gets to it.
+    private int climbRequested = 0;
+    private BlockWriteEngine pendingWrites = null;
+    // Finishes the move or turn once pendingWrites has been written out.
+    private Runnable pendingFinish = null;
+    // Move or turn being planned by the MovePlanner, applied once it completes.
+    private CompletableFuture<?> pendingPlan = null;
+    // Applies a plan completed on the planner pool, the next time continueMove is called.
+    private volatile Runnable plannedStart = null;
+    private List<Entity> pendingEntities = Collections.emptyList();
+    private Vector pendingMove = new Vector();
+    // Bumped whenever the hull or the vessel state changes, so the VesselStore can tell
+    // which vessels need to be written and whether a small state record is enough.
+    private int hullVersion = 0;
+    private int stateVersion = 0;
+    // Chunks the hull currently touches, refreshed whenever the hull is re-indexed.
+    private final LongOpenHashSet chunkFootprint = new LongOpenHashSet();
+    private final ShipStats stats = ShipStats.forVessel();
+    private final OnBoardTracker passengers = new OnBoardTracker();
+    // Holds the chunks around and ahead of the vessel while it sails.
+    private final ChunkPreloader preloader;
+    // Floors, ceilings and water under and over the hull, built on the first climb or descent.
+    private HeightmapCache heightmap = null;
+    // Players that had the hull's chunks loaded at the last resync.
+    private final HashSet<UUID> viewers = new HashSet<>();
+    // Ghost mode sails as block proxies and only writes blocks where the voyage ends.
+    private MotionMode motionMode;
+    private GhostVoyage voyage = null;
+    private UUID helmsman = null;
+    // Physics is suppressed around the hull while a move is being written.
+    private PhysicsQuarantine.Zone pendingZone = null;
+    // Journal ids of the move being written and of the ghost voyage under way, 0 if none.
+    private long pendingOp = 0;
+    private long voyageOp = 0;
+    // Block entities taken out of the world for the move or voyage under way, by hull index.
+    private Int2ObjectMap<BlockEntity> detachedEntities = Int2ObjectMaps.emptyMap();
+
+    private Vessel(Plugin owningPlugin, VesselIndex index, String name, Block startBlock) {
         this.name = name;
         this.owningPlugin = owningPlugin;
+        this.index = index;
+        this.id = index.register(this);
         this.world = startBlock.getWorld();
+        this.preloader = new ChunkPreloader(owningPlugin, world);
 
         // Engine sign isn't necessary to create vessel, can be added after.
         this.engineSign = null;
         this.steeringSign = null;
 
-        // Set the metadata for the licenseSign block, then discover vessel blocks.
-        startBlock.setMetadata(VESSEL_NAME_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, name));
-        startBlock.setMetadata(VESSEL_CONTROL_TYPE_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, LicenseSign.METADATA_VALUE));
+        this.motionMode = MotionMode.fromConfig(owningPlugin.getConfig().getString("motion.default-mode"));
         this.licenseSign = new LicenseSign((CraftSign) startBlock.getState());
         this.xBlockOffset = this.licenseSign.getX();
         this.yBlockOffset = this.licenseSign.getY();
         this.zBlockOffset = this.licenseSign.getZ();
+    }
+
+    /**
+     * Sets the journal moves and turns are written to before they change the world.
+     */
+    static void setJournal(MoveJournal moveJournal) {
+        journal = moveJournal;
+    }
+
+    /**
+     * Discovers a vessel from its license sign. The flood fill runs asynchronously and
+     * comes back to the calling (main) thread to snapshot each chunk the hull reaches,
+     * and the vessel is created back on the main thread.
+     *
+     * @param owningPlugin Plugin
+     * @param index        VesselIndex the index the vessel registers its blocks in
+     * @param name         String vessel name
+     * @param startBlock   Block the license sign
+     * @return future completed on the main thread with the new vessel
+     */
+    public static CompletableFuture<Vessel> discover(Plugin owningPlugin, VesselIndex index, String name,
+                                                     Block startBlock) {
+        CompletableFuture<Vessel> future = new CompletableFuture<>();
+        VesselDiscovery discovery = VesselDiscovery.startingAt(startBlock,
+                owningPlugin.getConfig().getInt("discovery.chunk-radius", 4), MAX_VESSEL_SZ);
+        continueDiscovery(owningPlugin, index, name, startBlock, discovery, 0, future);
+        return future;
+    }
+
+    // Scans off the main thread until the search stops at chunks it hasn't got, snapshots
+    // those back on the main thread and goes on, until the whole hull is found.
+    private static void continueDiscovery(Plugin owningPlugin, VesselIndex index, String name, Block startBlock,
+                                          VesselDiscovery discovery, long scannedNanos,
+                                          CompletableFuture<Vessel> future) {
+        Bukkit.getScheduler().runTaskAsynchronously(owningPlugin, () -> {
+            VesselDiscovery.Result result;
+            long start = System.nanoTime();
+            try {
+                result = discovery.scan();
+            } catch (Exception e) {
+                Bukkit.getScheduler().runTask(owningPlugin, () -> future.completeExceptionally(e));
+                return;
+            }
+            long scanNanos = scannedNanos + System.nanoTime() - start;
+            Bukkit.getScheduler().runTask(owningPlugin, () -> {
+                if (result == null) {
+                    discovery.fetchChunks();
+                    continueDiscovery(owningPlugin, index, name, startBlock, discovery, scanNanos, future);
+                    return;
+                }
+                if (!(startBlock.getState() instanceof CraftSign)) {
+                    future.completeExceptionally(
+                            new IllegalStateException("License sign was removed during discovery"));
+                    return;
+                }
+                try {
+                    Vessel vessel = new Vessel(owningPlugin, index, name, startBlock);
+                    vessel.addDiscoveredBlocks(result);
+                    vessel.indexHull();
+                    vessel.trackPassengers();
+                    vessel.stats.record(ShipStats.Timing.DISCOVERY, scanNanos);
+                    future.complete(vessel);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        });
+    }
 
-        discoverVesselFromLicense();
+    /**
+     * Recreates a vessel from its stored record without rescanning the hull. Only the
+     * control signs are read from the world.
+     *
+     * @param owningPlugin Plugin
+     * @param index        VesselIndex the index the vessel registers its blocks in
+     * @param record       VesselStore.Record
+     * @return the vessel, or null if its world or license sign no longer exists
+     */
+    static Vessel restore(Plugin owningPlugin, VesselIndex index, VesselStore.Record record) {
+        World world = Bukkit.getWorld(record.worldId);
+        if (world == null) {
+            return null;
+        }
+        Block startBlock = world.getBlockAt(record.originX, record.originY, record.originZ);
+        if (!(startBlock.getState() instanceof CraftSign)) {
+            return null;
+        }
+        Vessel vessel = new Vessel(owningPlugin, index, record.name, startBlock);
+        vessel.addStoredBlocks(record);
+        vessel.indexHull();
+        vessel.trackPassengers();
+        return vessel;
     }
 
     /**
-     * Sets the metadata on an engine sign block and adds it to the vessel.
+     * Adds an engine sign block to the vessel and indexes it as a control sign.
      *
      * @param block Block
      */
@@ -75,329 +228,776 @@ public class Vessel {
             owningPlugin.getLogger().info("Engine already registered for ship.");
             return;
         }
-        block.setMetadata(VESSEL_CONTROL_TYPE_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, EngineSign.METADATA_VALUE));
-        block.setMetadata(VESSEL_NAME_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, name));
         CraftBlockState blockState = (CraftBlockState) block.getState();
         this.engineSign = new EngineSign((CraftSign) blockState);
-        this.m_blocks.add(new BlockInfo(this.engineSign));
+        addToHull(this.engineSign);
+        indexSign(this.engineSign, ShipSignType.ENGINE);
+        passengers.rebuild(hull);
+        hullVersion++;
     }
 
-    public void moveEngineMetadata(int x, int y, int z) {
-        this.engineSign.getBlock().removeMetadata(
-                VESSEL_CONTROL_TYPE_METADATA_KEY, owningPlugin
-        );
-        this.engineSign.getBlock().removeMetadata(
-                VESSEL_NAME_METADATA_KEY, owningPlugin
-        );
-
-        int newX = this.engineSign.getX() + x;
-        int newY = this.engineSign.getY() + y;
-        int newZ = this.engineSign.getZ() + z;
+    void setStatePosition(CraftBlockState block, int x, int y, int z) {
+        Field positionField = null;
+        try {
+            positionField = CraftBlockState.class.getDeclaredField("position");
+            positionField.setAccessible(true);
+            BlockPos newPosition = new BlockPos(x, y, z);
+            positionField.set(block, newPosition);
+        } catch (Exception e) {
+            Bukkit.getLogger().severe(e.toString());
+            return;
+        }
+    }
 
-        Block newEngineBlock = this.world.getBlockAt(newX, newY, newZ);
-        newEngineBlock.setMetadata(VESSEL_CONTROL_TYPE_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, EngineSign.METADATA_VALUE));
-        newEngineBlock.setMetadata(VESSEL_NAME_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, name));
+    public void addSteeringSign(Block block, String direction) {
+        this.steeringSign = new SteeringSign((CraftSign) block.getState());
+        addToHull(this.steeringSign);
+        indexSign(this.steeringSign, ShipSignType.STEERING);
+        passengers.rebuild(hull);
+        hullVersion++;
     }
 
-    public void rotateEngineMetadata(Rotation rotation) {
-        int sinFactor = 0;
-        switch (rotation) {
-            case LEFT:
-                sinFactor = 1;
-                break;
-            case RIGHT:
-                sinFactor = -1;
-                break;
+    // Indexes the hull at the current origin, then marks the control signs on top of it.
+    private void indexHull() {
+        index.addHull(world, hull, xBlockOffset, yBlockOffset, zBlockOffset, id);
+        chunkFootprint.clear();
+        for (int i = 0; i < hull.size(); i++) {
+            chunkFootprint.add(ChunkPos.asLong((xBlockOffset + hull.getX(i)) >> 4,
+                    (zBlockOffset + hull.getZ(i)) >> 4));
         }
+        indexSign(licenseSign, ShipSignType.LICENSE);
+        indexSign(engineSign, ShipSignType.ENGINE);
+        indexSign(steeringSign, ShipSignType.STEERING);
+    }
 
-        this.engineSign.getBlock().removeMetadata(
-                VESSEL_CONTROL_TYPE_METADATA_KEY, owningPlugin
-        );
-        this.engineSign.getBlock().removeMetadata(
-                VESSEL_NAME_METADATA_KEY, owningPlugin
-        );
-
-        int oldX = this.engineSign.getX() - xBlockOffset;
-        int oldZ = this.engineSign.getZ() - zBlockOffset;
-
-        int newX = (-oldZ * sinFactor) + xBlockOffset;
-        int newZ = (oldX * sinFactor) + zBlockOffset;
-
-        Block newEngineBlock = this.world.getBlockAt(newX, this.engineSign.getY(), newZ);
-        newEngineBlock.setMetadata(VESSEL_CONTROL_TYPE_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, EngineSign.METADATA_VALUE));
-        newEngineBlock.setMetadata(VESSEL_NAME_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, name));
+    // Rebuilds the passenger tracker's deck map and looks for entities already on board.
+    private void trackPassengers() {
+        passengers.rebuild(hull);
+        passengers.scan(world, xBlockOffset, yBlockOffset, zBlockOffset);
     }
 
-    public void moveSteeringMetadata(int x, int y, int z) {
-        this.steeringSign.getBlock().removeMetadata(
-                VESSEL_CONTROL_TYPE_METADATA_KEY, owningPlugin
-        );
-        this.steeringSign.getBlock().removeMetadata(
-                VESSEL_NAME_METADATA_KEY, owningPlugin
-        );
+    /**
+     * Starts carrying the entity along if it is standing on or inside the hull.
+     *
+     * @param entity Entity that just moved or spawned on the vessel
+     */
+    public void board(Entity entity) {
+        passengers.board(entity, xBlockOffset, yBlockOffset, zBlockOffset);
+    }
 
-        int newX = this.steeringSign.getX() + x;
-        int newY = this.steeringSign.getY() + y;
-        int newZ = this.steeringSign.getZ() + z;
+    private void unindexHull() {
+        index.removeHull(world, hull, xBlockOffset, yBlockOffset, zBlockOffset);
+    }
 
-        Block newEngineBlock = this.world.getBlockAt(newX, newY, newZ);
-        newEngineBlock.setMetadata(VESSEL_CONTROL_TYPE_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, SteeringSign.METADATA_VALUE));
-        newEngineBlock.setMetadata(VESSEL_NAME_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, name));
+    /**
+     * Adds a block placed against the hull. Only the new block is indexed, so this is O(1).
+     *
+     * @param block Block the placed block
+     * @return true if the block was added
+     */
+    public boolean addBlock(Block block) {
+        if (isMoving() || isGhostSailing() || hull.size() >= MAX_VESSEL_SZ || block.isEmpty() || block.isLiquid()) {
+            return false;
+        }
+        int x = block.getX() - xBlockOffset;
+        int y = block.getY() - yBlockOffset;
+        int z = block.getZ() - zBlockOffset;
+        if (hull.indexOf(x, y, z) != -1) {
+            return false;
+        }
+        hull.add(x, y, z, ((CraftBlockData) block.getBlockData()).getState());
+        index.put(world, block.getX(), block.getY(), block.getZ(), id, null);
+        chunkFootprint.add(ChunkPos.asLong(block.getX() >> 4, block.getZ() >> 4));
+        passengers.include(x, y, z);
+        hullVersion++;
+        return true;
     }
 
-    public void rotateSteeringMetadata(Rotation rotation) {
-        int sinFactor = 0;
-        switch (rotation) {
-            case LEFT:
-                sinFactor = 1;
-                break;
-            case RIGHT:
-                sinFactor = -1;
-                break;
+    /**
+     * Removes a block that was broken or blown up. If the block held two or more hull
+     * blocks together, the hull is checked for pieces that are no longer connected to the
+     * license sign, and those are left behind as plain blocks.
+     *
+     * @param block    Block the block being removed
+     * @param signType ShipSignType of the block if it is an engine or steering sign, else null
+     */
+    public void removeBlock(Block block, ShipSignType signType) {
+        if (isMoving() || isGhostSailing()) {
+            return;
+        }
+        int x = block.getX() - xBlockOffset;
+        int y = block.getY() - yBlockOffset;
+        int z = block.getZ() - zBlockOffset;
+        int removed = hull.indexOf(x, y, z);
+        if (removed == -1) {
+            return;
         }
+        if (signType == ShipSignType.ENGINE) {
+            setSailing(false);
+            engineSign = null;
+        } else if (signType == ShipSignType.STEERING) {
+            steeringSign = null;
+        }
+        hull.remove(removed);
+        index.remove(world, block.getX(), block.getY(), block.getZ());
+        hullVersion++;
+
+        LongArrayList neighbours = new LongArrayList(6);
+        for (BlockFace face : CONNECTING_FACES) {
+            if (hull.indexOf(x + face.getModX(), y + face.getModY(), z + face.getModZ()) != -1) {
+                neighbours.add(BlockPos.asLong(x + face.getModX(), y + face.getModY(), z + face.getModZ()));
+            }
+        }
+        // With a single neighbour the hull just lost a leaf, which can't split it.
+        if (neighbours.size() >= 2) {
+            dropSeveredBlocks(neighbours);
+        }
+    }
 
-        this.steeringSign.getBlock().removeMetadata(
-                VESSEL_CONTROL_TYPE_METADATA_KEY, owningPlugin
-        );
-        this.steeringSign.getBlock().removeMetadata(
-                VESSEL_NAME_METADATA_KEY, owningPlugin
-        );
+    // Flood fills the hull from the license sign until every neighbour of the removed
+    // block is reached. Blocks the fill can't reach are removed from the vessel.
+    private void dropSeveredBlocks(LongArrayList neighbours) {
+        LongOpenHashSet pending = new LongOpenHashSet(neighbours);
+        LongOpenHashSet reached = new LongOpenHashSet();
+        LongArrayFIFOQueue workList = new LongArrayFIFOQueue();
+        long start = BlockPos.asLong(0, 0, 0);
+        reached.add(start);
+        workList.enqueue(start);
+        pending.remove(start);
+        while (!workList.isEmpty() && !pending.isEmpty()) {
+            long cell = workList.dequeueLong();
+            for (BlockFace face : CONNECTING_FACES) {
+                int x = BlockPos.getX(cell) + face.getModX();
+                int y = BlockPos.getY(cell) + face.getModY();
+                int z = BlockPos.getZ(cell) + face.getModZ();
+                long next = BlockPos.asLong(x, y, z);
+                if (hull.indexOf(x, y, z) != -1 && reached.add(next)) {
+                    pending.remove(next);
+                    workList.enqueue(next);
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
 
-        int oldX = this.steeringSign.getX() - xBlockOffset;
-        int oldZ = this.steeringSign.getZ() - zBlockOffset;
+        // The fill ran out, so it visited everything still attached to the license sign.
+        int before = hull.size();
+        for (int i = hull.size() - 1; i >= 0; i--) {
+            if (!reached.contains(hull.getPosition(i))) {
+                index.remove(world, xBlockOffset + hull.getX(i), yBlockOffset + hull.getY(i), zBlockOffset + hull.getZ(i));
+                if (engineSign != null && isSignAt(engineSign, i)) {
+                    setSailing(false);
+                    engineSign = null;
+                }
+                if (steeringSign != null && isSignAt(steeringSign, i)) {
+                    steeringSign = null;
+                }
+                hull.remove(i);
+            }
+        }
+        indexHull();
+        passengers.rebuild(hull);
+        owningPlugin.getLogger().info("Vessel " + name + " lost " + (before - hull.size()) + " severed blocks");
+    }
 
-        int newX = (-oldZ * sinFactor) + xBlockOffset;
-        int newZ = (oldX * sinFactor) + zBlockOffset;
+    private boolean isSignAt(ShipSign sign, int index) {
+        return sign.getX() == xBlockOffset + hull.getX(index)
+                && sign.getY() == yBlockOffset + hull.getY(index)
+                && sign.getZ() == zBlockOffset + hull.getZ(index);
+    }
 
-        Block newEngineBlock = this.world.getBlockAt(newX, this.steeringSign.getY(), newZ);
-        newEngineBlock.setMetadata(VESSEL_CONTROL_TYPE_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, SteeringSign.METADATA_VALUE));
-        newEngineBlock.setMetadata(VESSEL_NAME_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, name));
+    /**
+     * @return true if any hull block lies in the chunk, keyed by ChunkPos.asLong
+     */
+    public boolean occupiesChunk(long chunkKey) {
+        return chunkFootprint.contains(chunkKey);
     }
 
+    /**
+     * @return the chunks the hull touches, keyed by ChunkPos.asLong
+     */
+    public long[] getChunkFootprint() {
+        return chunkFootprint.toLongArray();
+    }
 
-    void setStatePosition(CraftBlockState block, int x, int y, int z) {
-        Field positionField = null;
-        try {
-            positionField = CraftBlockState.class.getDeclaredField("position");
-            positionField.setAccessible(true);
-            BlockPos newPosition = new BlockPos(x, y, z);
-            positionField.set(block, newPosition);
-        } catch (Exception e) {
-            Bukkit.getLogger().severe(e.toString());
-            return;
+    /**
+     * Finishes any pending move and removes the vessel from the index. The vessel must
+     * not be used afterwards; it is brought back through Vessel.restore.
+     */
+    void deactivate() {
+        // A plan still in the works hasn't touched the hull or the world, so it's dropped.
+        pendingPlan = null;
+        continueMove(Integer.MAX_VALUE);
+        setSailing(false);
+        if (heightmap != null) {
+            heightmap.release();
         }
+        unindexHull();
+        index.unregister(id);
     }
 
-    public void addSteeringSign(Block block, String direction) {
-        block.setMetadata(VESSEL_CONTROL_TYPE_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, SteeringSign.METADATA_VALUE));
-        block.setMetadata(VESSEL_NAME_METADATA_KEY,
-                new FixedMetadataValue(owningPlugin, name));
+    /**
+     * Sends the whole hull to players that started tracking its chunks since the last
+     * call, in case they received a chunk while a move was only partly written. Everyone
+     * else is kept up to date by the packets sent at the end of each move.
+     */
+    void resyncViewers() {
+        ServerLevel level = ((CraftWorld) world).getHandle();
+        HashSet<UUID> current = new HashSet<>();
+        LongIterator it = chunkFootprint.iterator();
+        while (it.hasNext()) {
+            for (ServerPlayer player : level.getChunkSource().chunkMap.getPlayers(new ChunkPos(it.nextLong()), false)) {
+                current.add(player.getUUID());
+            }
+        }
+        HashSet<UUID> joined = new HashSet<>(current);
+        joined.removeAll(viewers);
+        viewers.clear();
+        viewers.addAll(current);
+        if (joined.isEmpty()) {
+            return;
+        }
 
-        this.steeringSign = new SteeringSign((CraftSign) block.getState());
-        this.m_blocks.add(new BlockInfo(this.steeringSign));
+        Long2ObjectOpenHashMap<ShortSet> sections = new Long2ObjectOpenHashMap<>();
+        for (int i = 0; i < hull.size(); i++) {
+            int x = xBlockOffset + hull.getX(i);
+            int y = yBlockOffset + hull.getY(i);
+            int z = zBlockOffset + hull.getZ(i);
+            long sectionKey = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+            ShortSet positions = sections.get(sectionKey);
+            if (positions == null) {
+                positions = new ShortOpenHashSet();
+                sections.put(sectionKey, positions);
+            }
+            positions.add(SectionPos.sectionRelativePos(new BlockPos(x, y, z)));
+        }
+        BlockWriteEngine.sendSections(level, sections, player -> joined.contains(player.getUUID()));
     }
 
-    private void discoverVesselFromLicense() {
-        HashSet<Block> visitedBlocks = new HashSet<>();
-        ArrayDeque<BlockState> workList = new ArrayDeque<>(MAX_SEARCH_SPACE);
-        workList.add(this.licenseSign);
+    private void indexSign(ShipSign sign, ShipSignType type) {
+        if (sign != null) {
+            index.put(world, sign.getX(), sign.getY(), sign.getZ(), id, type);
+        }
+    }
 
-        // Start block is always License sign and should be added to m_blocks when created
+    // Adds a block to the hull relative to the vessel origin.
+    private void addToHull(CraftBlockState state) {
+        hull.add(state.getX() - xBlockOffset, state.getY() - yBlockOffset,
+                state.getZ() - zBlockOffset, state.getHandle());
+    }
 
-        while (!workList.isEmpty()) {
-            BlockState curBlockState = workList.remove();
-            Block curBlock = curBlockState.getBlock();
-            if (curBlock.isLiquid() ||
-                    curBlock.isEmpty() ||
-                    visitedBlocks.contains(curBlock)
-            ) {
+    // Builds the hull from the blocks found by the discovery scan.
+    private void addDiscoveredBlocks(VesselDiscovery.Result discovered) {
+        // Start block is always License sign and should be added to the hull when created
+        addToHull(this.licenseSign);
+        for (int i = 0; i < discovered.size(); i++) {
+            long position = discovered.getPosition(i);
+            int x = BlockPos.getX(position);
+            int y = BlockPos.getY(position);
+            int z = BlockPos.getZ(position);
+            if (x == licenseSign.getX() && y == licenseSign.getY() && z == licenseSign.getZ()) {
                 continue;
             }
+            hull.add(x - xBlockOffset, y - yBlockOffset, z - zBlockOffset, discovered.getState(i));
+        }
+        owningPlugin.getLogger().info("Discovered " + hull.size() + " blocks for vessel " + name);
+    }
 
-            // Set the metadata on each vessel block.
-            curBlock.setMetadata(VESSEL_NAME_METADATA_KEY,
-                    new FixedMetadataValue(owningPlugin, name));
-
-            m_blocks.add(new BlockInfo((CraftBlockState) curBlockState));
-            if (m_blocks.size() >= MAX_VESSEL_SZ) {
-                return;
-            }
+    // Builds the hull from a stored record. The palette is parsed once, and only the
+    // control signs need a world lookup.
+    private void addStoredBlocks(VesselStore.Record record) {
+        net.minecraft.world.level.block.state.BlockState[] palette =
+                new net.minecraft.world.level.block.state.BlockState[record.palette.length];
+        for (int id = 0; id < palette.length; id++) {
+            palette[id] = ((CraftBlockData) Bukkit.createBlockData(record.palette[id])).getState();
+        }
 
-            visitedBlocks.add(curBlock);
-            Bukkit.getLogger().info("Adding block of material: " + curBlock.getType() + " at x: " + curBlock.getX() + " y: " + curBlock.getY());
+        addToHull(this.licenseSign);
+        long engineOffset = record.engineSignOffset == null ? Long.MIN_VALUE : record.engineSignOffset;
+        long steeringOffset = record.steeringSignOffset == null ? Long.MIN_VALUE : record.steeringSignOffset;
+        if (record.engineSignOffset != null) {
+            this.engineSign = new EngineSign((CraftSign) blockAtOffset(engineOffset).getState());
+            this.engineSign.velocity = record.velocity;
+            addToHull(this.engineSign);
+        }
+        if (record.steeringSignOffset != null) {
+            this.steeringSign = new SteeringSign((CraftSign) blockAtOffset(steeringOffset).getState());
+            addToHull(this.steeringSign);
+        }
 
-            workList.add(curBlock.getRelative(BlockFace.UP).getState());
-            workList.add(curBlock.getRelative(BlockFace.DOWN).getState());
-            workList.add(curBlock.getRelative(BlockFace.EAST).getState());
-            workList.add(curBlock.getRelative(BlockFace.WEST).getState());
-            workList.add(curBlock.getRelative(BlockFace.NORTH).getState());
-            workList.add(curBlock.getRelative(BlockFace.SOUTH).getState());
+        for (int i = 0; i < record.positions.length; i++) {
+            long offset = record.positions[i];
+            if (offset == 0L || offset == engineOffset || offset == steeringOffset) {
+                continue;
+            }
+            hull.add(BlockPos.getX(offset), BlockPos.getY(offset), BlockPos.getZ(offset), palette[record.stateIds[i]]);
         }
     }
 
+    private Block blockAtOffset(long offset) {
+        return world.getBlockAt(xBlockOffset + BlockPos.getX(offset),
+                yBlockOffset + BlockPos.getY(offset),
+                zBlockOffset + BlockPos.getZ(offset));
+    }
+
     //
     // Movement
     //
     public void incrementVelocity() {
         engineSign.incrementVelocity();
+        stateVersion++;
     }
 
     public void decrementVelocity() {
         engineSign.decrementVelocity();
+        stateVersion++;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public int getOriginX() {
+        return xBlockOffset;
+    }
+
+    public int getOriginY() {
+        return yBlockOffset;
+    }
+
+    public int getOriginZ() {
+        return zBlockOffset;
+    }
+
+    public int getVelocity() {
+        return engineSign == null ? 0 : engineSign.velocity;
+    }
+
+    Hull getHull() {
+        return hull;
+    }
+
+    EngineSign getEngineSign() {
+        return engineSign;
+    }
+
+    SteeringSign getSteeringSign() {
+        return steeringSign;
+    }
+
+    int getHullVersion() {
+        return hullVersion;
+    }
+
+    int getStateVersion() {
+        return stateVersion;
+    }
+
+    public ShipStats getStats() {
+        return stats;
+    }
+
+    public boolean hasEngine() {
+        return engineSign != null;
+    }
+
+    public boolean isSailing() {
+        return sailing;
+    }
+
+    public void setSailing(boolean sailing) {
+        this.sailing = sailing && hasEngine();
+        if (!this.sailing) {
+            helmsman = null;
+            endVoyage();
+            if (!isMoving()) {
+                preloader.release();
+            }
+        }
+    }
+
+    public void toggleSailing() {
+        setSailing(!sailing);
+    }
+
+    /**
+     * Toggles sailing on behalf of a player. In ghost mode the player takes the helm, and
+     * the vessel comes to rest when they leave it.
+     *
+     * @param player Player who clicked the engine sign
+     */
+    public void toggleSailing(Player player) {
+        toggleSailing();
+        if (sailing) {
+            helmsman = player.getUniqueId();
+        }
+    }
+
+    public MotionMode getMotionMode() {
+        return motionMode;
+    }
+
+    /**
+     * Switches between stepping real blocks and sailing as proxies. A ghost voyage in
+     * progress is brought to rest first.
+     */
+    public void setMotionMode(MotionMode motionMode) {
+        if (motionMode != MotionMode.GHOST) {
+            endVoyage();
+        }
+        this.motionMode = motionMode;
+    }
+
+    /**
+     * Asks the motion scheduler for a single engine step, even if the vessel is not sailing.
+     */
+    public void requestStep() {
+        this.stepRequested = hasEngine();
+    }
+
+    boolean hasStepRequest() {
+        return stepRequested;
+    }
+
+    boolean takeStepRequest() {
+        boolean requested = stepRequested;
+        stepRequested = false;
+        return requested;
+    }
+
+    /**
+     * Asks the motion scheduler to turn the vessel once it gets its turn. A later request
+     * replaces one that hasn't run yet.
+     *
+     * @param left boolean true to turn left, false to turn right
+     */
+    public void requestTurn(boolean left) {
+        this.turnRequested = left ? Rotation.LEFT : Rotation.RIGHT;
+    }
+
+    boolean hasTurnRequest() {
+        return turnRequested != null;
+    }
+
+    /**
+     * Asks the motion scheduler to climb or descend. A later request replaces one that
+     * hasn't run yet.
+     *
+     * @param blocks int blocks to climb, negative to descend
+     */
+    public void requestClimb(int blocks) {
+        this.climbRequested = blocks;
+    }
+
+    boolean hasClimbRequest() {
+        return climbRequested != 0;
+    }
+
+    // Starts the requested climb or descent, if any. Waits while a move is being written.
+    boolean runClimbRequest() {
+        if (climbRequested == 0 || isMoving() || isGhostSailing()) {
+            return false;
+        }
+        int blocks = climbRequested;
+        climbRequested = 0;
+        beginVerticalMove(Integer.signum(blocks), Math.abs(blocks));
+        return true;
+    }
+
+    // Performs the requested turn, if any. Turns wait while a move is being written.
+    boolean runTurnRequest() {
+        if (turnRequested == null || isMoving()) {
+            return false;
+        }
+        Rotation rotation = turnRequested;
+        turnRequested = null;
+        rotateVessel(rotation);
+        return true;
+    }
+
+    /**
+     * @return true while a move or turn is being planned, or has been planned but not
+     * all of its blocks have been written
+     */
+    public boolean isMoving() {
+        return pendingWrites != null || pendingPlan != null;
+    }
+
+    public boolean isGhostSailing() {
+        return voyage != null;
+    }
+
+    public int getBlockCount() {
+        return hull.size();
     }
 
     public void moveForward() {
-        m_blocks.sort(Comparator.comparing(BlockInfo::getPriority));
+        beginMoveForward();
+        continueMove(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Plans one engine step in the direction the engine sign is facing. Nothing is written
+     * until continueMove is called, so the step can be spread across several ticks. The
+     * step is shortened if something is in the way, and the vessel stops sailing if it
+     * can't move at all.
+     */
+    public void beginMoveForward() {
+        if (isMoving() || isGhostSailing()) {
+            return;
+        }
+        BlockFace heading = heading();
+        if (heading == BlockFace.SELF) {
+            return;
+        }
+        int velocity = engineSign.velocity;
+        // The chunks of the last step are held too, in case it is still being written.
+        preloader.hold(chunkFootprint, heading.getModX(), heading.getModZ(), -velocity, velocity * preloadSteps());
+        if (!preloader.isLoaded(chunkFootprint, heading.getModX(), heading.getModZ(), 0, velocity)) {
+            // Waits for the chunks ahead to load rather than loading them on this thread.
+            stepRequested |= !sailing;
+            return;
+        }
+        if (!beginClearMove(heading.getModX(), 0, heading.getModZ(), velocity)) {
+            setSailing(false);
+        }
+    }
+
+    // Engine steps' worth of chunks ahead of a sailing vessel that are loaded in advance.
+    private int preloadSteps() {
+        return Math.max(1, owningPlugin.getConfig().getInt("motion.preload-steps", 4));
+    }
+
+    // Direction the engine drives the vessel in, as a horizontal face, or SELF if the
+    // engine sign doesn't point anywhere.
+    private BlockFace heading() {
         switch (engineSign.getMovementDirection()) {
             case EAST:
             case EAST_NORTH_EAST:
             case EAST_SOUTH_EAST:
             case NORTH_EAST:
-                moveBlocks(-engineSign.velocity, 0, 0);
-                break;
+                return BlockFace.WEST;
             case WEST:
             case WEST_NORTH_WEST:
             case WEST_SOUTH_WEST:
             case SOUTH_WEST:
-                moveBlocks(engineSign.velocity, 0, 0);
-                break;
+                return BlockFace.EAST;
             case SOUTH:
             case SOUTH_SOUTH_WEST:
             case SOUTH_SOUTH_EAST:
             case SOUTH_EAST:
-                moveBlocks(0, 0, -engineSign.velocity);
-                break;
+                return BlockFace.NORTH;
             case NORTH:
             case NORTH_NORTH_EAST:
             case NORTH_NORTH_WEST:
             case NORTH_WEST:
-                moveBlocks(0, 0, engineSign.velocity);
-                break;
+                return BlockFace.SOUTH;
+            default:
+                return BlockFace.SELF;
         }
     }
 
-    public void moveUp() {
-        m_blocks.sort(Comparator.comparing(BlockInfo::getPriority));
-        moveBlocks(0, 1, 0);
+    /**
+     * Advances a ghost voyage by one tick, launching it first if needed. The vessel glides
+     * velocity blocks every stepInterval ticks, and comes to rest when something is in the
+     * way or the helmsman leaves the helm.
+     *
+     * @param stepInterval int ticks the block stepping mode takes per engine step
+     */
+    public void tickGhost(int stepInterval) {
+        if (isMoving()) {
+            return;
+        }
+        if (!helmManned()) {
+            setSailing(false);
+            return;
+        }
+        if (voyage == null) {
+            BlockFace heading = heading();
+            if (heading == BlockFace.SELF) {
+                return;
+            }
+            // Until it lands, the journal knows the vessel at its launch point.
+            detachBlockEntities();
+            voyageOp = journalBegin(xBlockOffset, yBlockOffset, zBlockOffset, 0);
+            voyage = GhostVoyage.launch(world, hull, xBlockOffset, yBlockOffset, zBlockOffset,
+                    heading.getModX(), heading.getModZ(), collectEntities());
+            unindexHull();
+        }
+
+        double speed = (double) engineSign.velocity / Math.max(1, stepInterval);
+        int reached = voyage.getBlocksTravelled();
+        int target = (int) Math.floor(voyage.getProgress() + speed);
+        // The footprint is still the one at the launch point.
+        preloader.hold(chunkFootprint, voyage.getDx(), voyage.getDz(), reached,
+                target + engineSign.velocity * preloadSteps());
+        if (!preloader.isLoaded(chunkFootprint, voyage.getDx(), voyage.getDz(), reached, target + 1)) {
+            // Holds position until the chunks ahead are loaded.
+            return;
+        }
+        if (target > reached) {
+            // Only the blocks newly entered this tick need a collision check.
+            int clear = new CollisionEngine(world).clearDistance(hull,
+                    xBlockOffset + voyage.getDx() * reached, yBlockOffset, zBlockOffset + voyage.getDz() * reached,
+                    voyage.getDx(), 0, voyage.getDz(), target - reached);
+            if (clear < target - reached) {
+                voyage.advance(reached + clear - voyage.getProgress());
+                owningPlugin.getLogger().info("Vessel " + name + " is blocked");
+                setSailing(false);
+                return;
+            }
+        }
+        voyage.advance(speed);
     }
 
-    public void moveDown() {
-        m_blocks.sort(Comparator.comparing(BlockInfo::getPriority));
+    // A ghost voyage needs its helmsman online and near the engine sign.
+    private boolean helmManned() {
+        if (motionMode != MotionMode.GHOST || helmsman == null) {
+            return true;
+        }
+        Player player = Bukkit.getPlayer(helmsman);
+        if (player == null || player.getWorld() != world) {
+            return false;
+        }
+        double travelled = voyage == null ? 0 : voyage.getProgress();
+        double signX = engineSign.getX() + 0.5 + (voyage == null ? 0 : voyage.getDx() * travelled);
+        double signZ = engineSign.getZ() + 0.5 + (voyage == null ? 0 : voyage.getDz() * travelled);
+        Location location = player.getLocation();
+        double distX = location.getX() - signX;
+        double distZ = location.getZ() - signZ;
+        return distX * distX + distZ * distZ <= HELM_RANGE * HELM_RANGE;
     }
 
-    public BlockFace getRightFace(BlockFace blockFace) {
-        return getLeftFace(blockFace).getOppositeFace();
+    // Writes the hull back where the ghost voyage got to, in one commit.
+    private void endVoyage() {
+        if (voyage == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        GhostVoyage landed = voyage;
+        voyage = null;
+        landed.end();
+        int travelled = landed.getBlocksTravelled();
+        long landing = journalBegin(xBlockOffset + landed.getDx() * travelled, yBlockOffset,
+                zBlockOffset + landed.getDz() * travelled, 0);
+        xBlockOffset += landed.getDx() * travelled;
+        zBlockOffset += landed.getDz() * travelled;
+
+        BlockWriteEngine engine = new BlockWriteEngine(world);
+        HullPlanner.queueHull(engine, hull, xBlockOffset, yBlockOffset, zBlockOffset);
+        moveSigns(landed.getDx() * travelled, 0, landed.getDz() * travelled);
+        indexHull();
+        stateVersion++;
+        int written = engine.commit();
+        journalCommit(landing);
+        journalCommit(voyageOp);
+        voyageOp = 0;
+        attachBlockEntities();
+        PhysicsQuarantine.settle(world, hull, xBlockOffset, yBlockOffset, zBlockOffset, LongLists.EMPTY_LIST);
+        stats.addBlocksWritten(written);
+        stats.time(ShipStats.Timing.MOVE_WRITE, start);
     }
 
-    public BlockFace getLeftFace(BlockFace blockFace) {
-        switch (blockFace) {
-            case NORTH:
-                return BlockFace.EAST;
-            case SOUTH:
-                return BlockFace.WEST;
-            case EAST:
-                return BlockFace.SOUTH;
-            case WEST:
-                return BlockFace.NORTH;
-            case UP:
-                return BlockFace.UP;
-            case DOWN:
-                return BlockFace.DOWN;
-            case NORTH_EAST:
-                return BlockFace.SOUTH_EAST;
-            case NORTH_WEST:
-                return BlockFace.NORTH_EAST;
-            case SOUTH_EAST:
-                return BlockFace.SOUTH_WEST;
-            case SOUTH_WEST:
-                return BlockFace.NORTH_WEST;
-            case WEST_NORTH_WEST:
-                return BlockFace.NORTH_NORTH_EAST;
-            case NORTH_NORTH_WEST:
-                return BlockFace.EAST_NORTH_EAST;
-            case NORTH_NORTH_EAST:
-                return BlockFace.EAST_SOUTH_EAST;
-            case EAST_NORTH_EAST:
-                return BlockFace.SOUTH_SOUTH_EAST;
-            case EAST_SOUTH_EAST:
-                return BlockFace.SOUTH_SOUTH_WEST;
-            case SOUTH_SOUTH_EAST:
-                return BlockFace.WEST_SOUTH_WEST;
-            case SOUTH_SOUTH_WEST:
-                return BlockFace.WEST_NORTH_WEST;
-            case WEST_SOUTH_WEST:
-                return BlockFace.NORTH_NORTH_WEST;
-            case SELF:
-                return BlockFace.SELF;
+    // Moves up to distance blocks along the unit direction, stopping short of the first
+    // obstacle. Returns false if the vessel couldn't move at all.
+    private boolean beginClearMove(int dx, int dy, int dz, int distance) {
+        long start = System.nanoTime();
+        int clear = new CollisionEngine(world).clearDistance(hull, xBlockOffset, yBlockOffset, zBlockOffset,
+                dx, dy, dz, distance);
+        if (clear == 0) {
+            owningPlugin.getLogger().info("Vessel " + name + " is blocked");
+            return false;
+        }
+        beginMove(dx * clear, dy * clear, dz * clear);
+        stats.time(ShipStats.Timing.MOVE_PLAN, start);
+        return true;
+    }
+
+    /**
+     * Writes up to budget blocks of the pending move or turn, starting it first if its
+     * plan has just completed. Once the last block is written it is finished off by
+     * moving the entities on board.
+     *
+     * @param budget int maximum number of block writes to perform
+     * @return number of block writes performed
+     */
+    public int continueMove(int budget) {
+        Runnable planned = plannedStart;
+        if (planned != null) {
+            plannedStart = null;
+            planned.run();
         }
+        if (pendingWrites == null) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        int processed = pendingWrites.commit(budget);
+        stats.time(ShipStats.Timing.MOVE_WRITE, start);
+        stats.addBlocksWritten(processed);
+        if (pendingWrites.isEmpty()) {
+            Runnable finish = pendingFinish;
+            this.pendingWrites = null;
+            this.pendingFinish = null;
+            finish.run();
+        }
+        return processed;
+    }
 
-        return BlockFace.SELF;
+    // Climbs (dy = 1) or descends (dy = -1) up to distance blocks, stopping short of the
+    // first obstacle or the waterline, as told by the heightmap cache.
+    private boolean beginVerticalMove(int dy, int distance) {
+        long start = System.nanoTime();
+        if (heightmap == null) {
+            heightmap = new HeightmapCache(world, owningPlugin.getConfig().getLong("altitude.refresh-ticks", 100));
+        }
+        int clear = heightmap.clearance(hull, hullVersion, xBlockOffset, yBlockOffset, zBlockOffset, dy, distance);
+        if (clear == HeightmapCache.UNMAPPED) {
+            return beginClearMove(0, dy, 0, distance);
+        }
+        if (clear == 0) {
+            owningPlugin.getLogger().info("Vessel " + name + " is blocked");
+            return false;
+        }
+        beginMove(0, dy * clear, 0);
+        stats.time(ShipStats.Timing.MOVE_PLAN, start);
+        return true;
     }
 
-    public void rotateBlockTexture(BlockState state, Rotation rotation) {
-        BlockData data = state.getBlockData();
-        if (data instanceof Rotatable) {
-            owningPlugin.getLogger().info("Found rotatable!");
-            Rotatable rotatableData = (Rotatable) data;
-            BlockFace orientation = rotatableData.getRotation();
-            if (orientation == BlockFace.DOWN ||
-                    orientation == BlockFace.UP ||
-                    orientation == BlockFace.SELF) {
-                return;
-            }
-            switch (rotation) {
-                case RIGHT:
-                    rotatableData.setRotation(getRightFace(orientation));
-                    break;
-                case LEFT:
-                    rotatableData.setRotation(getLeftFace(orientation));
-                    break;
-            }
-        } else if (data instanceof Orientable) {
-            owningPlugin.getLogger().info("Found orientable!");
-
-            Orientable orientableData = (Orientable) data;
-            Axis currentAxis = orientableData.getAxis();
-            if (currentAxis == Axis.X) {
-                orientableData.setAxis(Axis.Z);
-            } else if (currentAxis == Axis.Z) {
-                orientableData.setAxis(Axis.X);
-            }
-        } else if (data instanceof Directional) {
-            owningPlugin.getLogger().info("Found directional!");
-
-            Directional rotatableData = (Directional) data;
-            BlockFace orientation = rotatableData.getFacing();
-            if (orientation == BlockFace.DOWN ||
-                    orientation == BlockFace.UP ||
-                    orientation == BlockFace.SELF) {
-                return;
-            }
-            switch (rotation) {
-                case RIGHT:
-                    rotatableData.setFacing(getRightFace(orientation));
-                    break;
-                case LEFT:
-                    rotatableData.setFacing(getLeftFace(orientation));
-                    break;
-            }
+    /**
+     * @return true if the block is a sign reading [alt] on its second line, which climbs
+     * or descends the vessel it is part of
+     */
+    static boolean isAltitudeSign(Block block) {
+        if (!Tag.SIGNS.isTagged(block.getType())) {
+            return false;
+        }
+        BlockState state = block.getState(false);
+        if (!(state instanceof org.bukkit.block.Sign)) {
+            return false;
         }
-        state.setBlockData(data);
+        Component line = ((org.bukkit.block.Sign) state).line(1);
+        return line instanceof TextComponent &&
+                ((TextComponent) line).content().equals(ShipSignType.ALTITUDE.getValue());
+    }
+
+    public void rotateBlockTexture(BlockState state, Rotation rotation) {
+        state.setBlockData(rotationCache.rotate(state.getBlockData(), rotation == Rotation.LEFT));
+    }
+
+    private net.minecraft.world.level.block.state.BlockState rotateState(
+            net.minecraft.world.level.block.state.BlockState state, Rotation rotation) {
+        return rotationCache.rotate(state, rotation == Rotation.LEFT);
     }
 
     public void rotateVessel(Rotation rotation) {
-        m_blocks.sort(Comparator.comparing(BlockInfo::getPriority));
+        if (isMoving() || isGhostSailing()) {
+            return;
+        }
         int sinFactor = 0;
         switch (rotation) {
             case LEFT:
@@ -407,29 +1007,108 @@ public class Vessel {
                 sinFactor = -1;
                 break;
         }
-
-        rotateEngineMetadata(rotation);
-        rotateSteeringMetadata(rotation);
-        rotateEntities(rotation);
-
-        for (BlockInfo block : m_blocks) {
-            block.getState().getLocation().getBlock().setType(Material.AIR);
+        long start = System.nanoTime();
+        if (!new CollisionEngine(world).canRotate(hull, xBlockOffset, yBlockOffset, zBlockOffset, sinFactor)) {
+            owningPlugin.getLogger().info("Vessel " + name + " has no room to turn");
+            return;
         }
+        CompletableFuture<MovePlanner.RotationPlan> plan = MovePlanner.planRotation(new BlockWriteEngine(world),
+                hull.snapshot(), xBlockOffset, yBlockOffset, zBlockOffset, sinFactor,
+                state -> rotateState(state, rotation));
+        long planNanos = System.nanoTime() - start;
+        whenPlanned(plan, planned -> startRotation(planned, rotation, planNanos));
+    }
 
-        for (BlockInfo block : m_blocks) {
-            int oldX = block.getX() - xBlockOffset;
-            int oldZ = block.getZ() - zBlockOffset;
-
-            int newX = (-oldZ * sinFactor) + xBlockOffset;
-            int newZ = (oldX * sinFactor) + zBlockOffset;
+    // Starts writing a planned turn: the hull is swapped for its rotated copy right away,
+    // and the planned writes are left to continueMove, like those of a move.
+    private void startRotation(MovePlanner.RotationPlan plan, Rotation rotation, long planNanos) {
+        long start = System.nanoTime();
+        // Entities are picked up while the hull is still in place and turned once the
+        // last block of the turn has been written.
+        List<Entity> entities = collectEntities();
+        LongOpenHashSet held = new LongOpenHashSet(chunkFootprint);
+        unindexHull();
+
+        LongOpenHashSet vacated = new LongOpenHashSet(hull.size());
+        for (int i = 0; i < hull.size(); i++) {
+            vacated.add(BlockPos.asLong(xBlockOffset + hull.getX(i), yBlockOffset + hull.getY(i), zBlockOffset + hull.getZ(i)));
+        }
+        PhysicsQuarantine.Zone before = PhysicsQuarantine.quarantine(world, hull,
+                xBlockOffset, yBlockOffset, zBlockOffset, xBlockOffset, yBlockOffset, zBlockOffset);
+
+        detachBlockEntities();
+        long op = journalBegin(xBlockOffset, yBlockOffset, zBlockOffset, plan.sinFactor);
+        hull.applyRotation(plan);
+        passengers.rebuild(hull);
+        PhysicsQuarantine.Zone after = PhysicsQuarantine.quarantine(world, hull,
+                xBlockOffset, yBlockOffset, zBlockOffset, xBlockOffset, yBlockOffset, zBlockOffset);
+        for (int i = 0; i < hull.size(); i++) {
+            vacated.remove(BlockPos.asLong(xBlockOffset + hull.getX(i), yBlockOffset + hull.getY(i), zBlockOffset + hull.getZ(i)));
+        }
+        turnSigns(plan.sinFactor);
+        indexHull();
+        hullVersion++;
+        // The chunks the hull turns out of and into stay loaded until the turn is written.
+        held.addAll(chunkFootprint);
+        preloader.hold(held, 0, 0, 0, 0);
+        for (ShipSign sign : signs()) {
+            rotateBlockTexture(sign, rotation);
+        }
+        BlockWriteEngine engine = plan.getEngine();
+        this.pendingWrites = engine;
+        this.pendingFinish = () -> finishRotation(op, before, after, vacated, entities, rotation);
+        // Only the main thread's share; time spent on the planner pool doesn't hold up the
+        // tick, and the writes are timed as they are committed.
+        stats.record(ShipStats.Timing.ROTATE, planNanos + System.nanoTime() - start);
+        if (ShipStats.sample()) {
+            owningPlugin.getLogger().info("Vessel " + name + " turning " + rotation + ", "
+                    + engine.size() + " writes, " + entities.size() + " entities");
+        }
+    }
 
-            setStatePosition(block.getState(), newX, block.getY(), newZ);
-            BlockState bs = block.getState();
-            rotateBlockTexture(bs, rotation);
-            block.getState().update(true, true);
+    private void finishRotation(long op, PhysicsQuarantine.Zone before, PhysicsQuarantine.Zone after,
+                                LongOpenHashSet vacated, List<Entity> entities, Rotation rotation) {
+        journalCommit(op);
+        attachBlockEntities();
+        before.release();
+        after.release();
+        PhysicsQuarantine.settle(world, hull, xBlockOffset, yBlockOffset, zBlockOffset, vacated);
+        rotateEntities(entities, rotation);
+        if (!sailing) {
+            preloader.release();
         }
     }
 
+    // Applies a plan on the main thread once it completes: right away if it completed on
+    // the main thread, otherwise from the next continueMove, so that the scheduler starts
+    // it within its tick budget. The plan is dropped if the vessel is deactivated or its
+    // hull changes in the meantime.
+    private <T> void whenPlanned(CompletableFuture<T> plan, Consumer<T> apply) {
+        int plannedVersion = hullVersion;
+        pendingPlan = plan;
+        plan.whenComplete((result, error) -> {
+            Runnable finish = () -> {
+                if (pendingPlan != plan) {
+                    return;
+                }
+                pendingPlan = null;
+                if (error != null) {
+                    owningPlugin.getLogger().log(Level.WARNING,
+                            "Failed to plan the next move of vessel " + name, error);
+                } else if (hullVersion != plannedVersion) {
+                    owningPlugin.getLogger().info("Vessel " + name + " changed while its move was planned");
+                } else {
+                    apply.accept(result);
+                }
+            };
+            if (Bukkit.isPrimaryThread()) {
+                finish.run();
+            } else {
+                plannedStart = finish;
+            }
+        });
+    }
+
     public void rotateRight() {
         rotateVessel(Rotation.RIGHT);
     }
@@ -438,45 +1117,140 @@ public class Vessel {
         rotateVessel(Rotation.LEFT);
     }
 
-    private void moveBlocks(int x, int y, int z) {
+    private void beginMove(int x, int y, int z) {
+        CompletableFuture<BlockWriteEngine> plan = MovePlanner.planMove(new BlockWriteEngine(world), hull.snapshot(),
+                xBlockOffset + x, yBlockOffset + y, zBlockOffset + z, x, y, z,
+                owningPlugin.getConfig().getBoolean("motion.differential-moves", true));
+        whenPlanned(plan, engine -> startMove(engine, x, y, z));
+    }
+
+    // Starts writing a planned move. Nothing in the world or the vessel changes before this.
+    private void startMove(BlockWriteEngine engine, int x, int y, int z) {
+        // Entities are picked up while the hull is still in place and teleported once
+        // the last block of the move has been written.
+        this.pendingEntities = collectEntities();
+        this.pendingMove = new Vector(x, y, z);
+
+        if (!sailing) {
+            // A sailing vessel holds the chunks ahead already. Otherwise the chunks the move
+            // writes to are held until it's finished, so none of them unloads half written.
+            preloader.hold(chunkFootprint, Integer.signum(x), Integer.signum(z), 0, Math.abs(x) + Math.abs(z));
+        }
+        unindexHull();
+        detachBlockEntities();
+        this.pendingOp = journalBegin(xBlockOffset + x, yBlockOffset + y, zBlockOffset + z, 0);
+        this.pendingZone = PhysicsQuarantine.quarantine(world, hull, xBlockOffset, yBlockOffset, zBlockOffset,
+                xBlockOffset + x, yBlockOffset + y, zBlockOffset + z);
         this.xBlockOffset += x;
         this.yBlockOffset += y;
         this.zBlockOffset += z;
 
-        moveEngineMetadata(x, y, z);
-        moveSteeringMetadata(x, y, z);
-        moveEntities(x, y, z);
+        moveSigns(x, y, z);
+        indexHull();
+        stateVersion++;
+        this.pendingWrites = engine;
+        this.pendingFinish = this::finishMove;
+        if (ShipStats.sample()) {
+            owningPlugin.getLogger().info("Vessel " + name + " moving by (" + x + ", " + y + ", " + z + "), "
+                    + engine.size() + " writes, " + pendingEntities.size() + " entities");
+        }
+    }
 
-        Bukkit.getLogger().info("Moving blocks!");
-        for (BlockInfo block : m_blocks) {
-            block.getState().getLocation().getBlock().setType(Material.AIR);
+    // Journals an operation taking the vessel from its current origin to (toX, toY, toZ),
+    // turning it by sinFactor, along with the block entities detached for it. Has to be
+    // called after they are detached, before the hull or the origin change.
+    private long journalBegin(int toX, int toY, int toZ, int sinFactor) {
+        if (journal == null) {
+            return 0;
         }
+        return journal.begin(this, xBlockOffset, yBlockOffset, zBlockOffset, toX, toY, toZ, sinFactor,
+                detachedEntities);
+    }
 
-        ListIterator<BlockInfo> ri = m_blocks.listIterator(m_blocks.size());
-        while (ri.hasPrevious()) {
-            CraftBlockState block = ri.previous().getState();
-            setStatePosition(block, block.getX() + x, block.getY() + y, block.getZ() + z);
-            block.update(true);
+    private static void journalCommit(long op) {
+        if (journal != null && op != 0) {
+            journal.commit(op);
         }
     }
 
-    private void moveEntities(int x, int y, int z) {
-        Set<Chunk> vesselChunks = new HashSet<>();
-        for (BlockInfo block : m_blocks) {
-            Chunk chunk = block.getState().getLocation().getChunk();
-            vesselChunks.add(chunk);
+    // The control signs are kept as block state handles, which have to follow the hull.
+    private void moveSigns(int x, int y, int z) {
+        for (ShipSign sign : signs()) {
+            setStatePosition(sign, sign.getX() + x, sign.getY() + y, sign.getZ() + z);
         }
-        for (Chunk chunk : vesselChunks) {
-            Entity[] chunkEntities = chunk.getEntities();
-            for (Entity entity : chunkEntities) {
-                Location oldLoc = entity.getLocation();
-                Location newLoc = oldLoc.add(x, y, z);
-                entity.teleport(newLoc);
+    }
+
+    // Same quarter turn around the origin as MovePlanner.planRotation.
+    private void turnSigns(int sinFactor) {
+        for (ShipSign sign : signs()) {
+            int relX = sign.getX() - xBlockOffset;
+            int relZ = sign.getZ() - zBlockOffset;
+            setStatePosition(sign, xBlockOffset - relZ * sinFactor, sign.getY(), zBlockOffset + relX * sinFactor);
+        }
+    }
+
+    private List<ShipSign> signs() {
+        List<ShipSign> signs = new ArrayList<>(3);
+        signs.add(licenseSign);
+        if (engineSign != null) {
+            signs.add(engineSign);
+        }
+        if (steeringSign != null) {
+            signs.add(steeringSign);
+        }
+        return signs;
+    }
+
+    private void finishMove() {
+        journalCommit(pendingOp);
+        this.pendingOp = 0;
+        attachBlockEntities();
+        pendingZone.release();
+        this.pendingZone = null;
+        PhysicsQuarantine.settle(world, hull, xBlockOffset, yBlockOffset, zBlockOffset,
+                vacatedCells(pendingMove.getBlockX(), pendingMove.getBlockY(), pendingMove.getBlockZ()));
+        long start = System.nanoTime();
+        for (Entity entity : pendingEntities) {
+            entity.teleport(entity.getLocation().add(pendingMove));
+        }
+        stats.time(ShipStats.Timing.ENTITY_TRANSPORT, start);
+        stats.addEntityTeleports(pendingEntities.size());
+        this.pendingEntities = Collections.emptyList();
+        if (!sailing) {
+            preloader.release();
+        }
+    }
+
+    // World cells the hull covered before moving by (x, y, z) and no longer covers.
+    private LongArrayList vacatedCells(int x, int y, int z) {
+        LongArrayList vacated = new LongArrayList();
+        for (int i = 0; i < hull.size(); i++) {
+            int relX = hull.getX(i);
+            int relY = hull.getY(i);
+            int relZ = hull.getZ(i);
+            if (hull.indexOf(relX - x, relY - y, relZ - z) == -1) {
+                vacated.add(BlockPos.asLong(xBlockOffset - x + relX, yBlockOffset - y + relY, zBlockOffset - z + relZ));
             }
         }
+        return vacated;
     }
 
-    private void rotateEntities(Rotation rotation) {
+    // The write engine only places block states. Block entities are taken out of the
+    // world before the hull is written elsewhere, and put back once it is in place.
+    private void detachBlockEntities() {
+        detachedEntities = BlockEntityMover.detach(world, hull, xBlockOffset, yBlockOffset, zBlockOffset);
+    }
+
+    private void attachBlockEntities() {
+        BlockEntityMover.attach(world, hull, detachedEntities, xBlockOffset, yBlockOffset, zBlockOffset);
+        detachedEntities = Int2ObjectMaps.emptyMap();
+    }
+
+    private List<Entity> collectEntities() {
+        return passengers.collect(world, xBlockOffset, yBlockOffset, zBlockOffset);
+    }
+
+    private void rotateEntities(List<Entity> entities, Rotation rotation) {
         float yawDelta = 0.0f;
         int sinFactor = 0;
         switch (rotation) {
@@ -490,33 +1264,28 @@ public class Vessel {
                 break;
         }
 
-        Set<Chunk> vesselChunks = new HashSet<>();
-        for (BlockInfo block : m_blocks) {
-            Chunk chunk = block.getState().getLocation().getChunk();
-            vesselChunks.add(chunk);
-        }
-        for (Chunk chunk : vesselChunks) {
-            Entity[] chunkEntities = chunk.getEntities();
-            for (Entity entity : chunkEntities) {
-                Location oldLoc = entity.getLocation();
-                int oldX = oldLoc.getBlockX() - xBlockOffset;
-                int oldZ = oldLoc.getBlockZ() - zBlockOffset;
+        long start = System.nanoTime();
+        for (Entity entity : entities) {
+            Location oldLoc = entity.getLocation();
+            int oldX = oldLoc.getBlockX() - xBlockOffset;
+            int oldZ = oldLoc.getBlockZ() - zBlockOffset;
 
-                int newX = (-oldZ * sinFactor) + xBlockOffset;
-                int newZ = (oldX * sinFactor) + zBlockOffset;
-                Vector oldVelocity = entity.getVelocity();
+            int newX = (-oldZ * sinFactor) + xBlockOffset;
+            int newZ = (oldX * sinFactor) + zBlockOffset;
+            Vector oldVelocity = entity.getVelocity();
 
-                Location newLoc = new Location(this.world, newX, oldLoc.getY(), newZ);
+            Location newLoc = new Location(this.world, newX, oldLoc.getY(), newZ);
 
-                float newYaw = entity.getLocation().getYaw() + yawDelta;
-                float pitch = entity.getLocation().getPitch();
-                newLoc.setYaw(newYaw);
-                newLoc.setPitch(pitch);
+            float newYaw = entity.getLocation().getYaw() + yawDelta;
+            float pitch = entity.getLocation().getPitch();
+            newLoc.setYaw(newYaw);
+            newLoc.setPitch(pitch);
 
-                entity.teleport(newLoc);
-                entity.setVelocity(oldVelocity);
-            }
+            entity.teleport(newLoc);
+            entity.setVelocity(oldVelocity);
         }
+        stats.time(ShipStats.Timing.ENTITY_TRANSPORT, start);
+        stats.addEntityTeleports(entities.size());
     }
 
     private enum Rotation {
@@ -524,6 +1293,19 @@ public class Vessel {
         RIGHT
     }
 
+    /**
+     * How a sailing vessel moves: by rewriting its blocks every engine step, or as a
+     * cluster of block proxies that only turn back into blocks at rest.
+     */
+    public enum MotionMode {
+        BLOCKS,
+        GHOST;
+
+        static MotionMode fromConfig(String value) {
+            return "ghost".equalsIgnoreCase(value) ? GHOST : BLOCKS;
+        }
+    }
+
 
     /**
      * Enum class that supports string initialization, and allows fetching enum
@@ -533,6 +1315,7 @@ public class Vessel {
         LICENSE("[name]", "LICENSE"),
         STEERING("[steer]", "STEERING"),
         ENGINE("[move]", "ENGINE"),
+        ALTITUDE("[alt]", "ALTITUDE"),
         UNKNOWN("unknown", "UNKNOWN");
 
         private static final Map<String, ShipSignType> strToShipSignTypeMap =
@@ -597,7 +1380,16 @@ public class Vessel {
         final static int NUM_LINES = 4;
 
         public ShipSign(CraftSign sign) {
-            super(sign.getWorld(), new SignBlockEntity(sign.getPosition(), sign.getHandle()));
+            super(sign.getWorld(), liveSign(sign));
+        }
+
+        // The sign's own block entity, so edits through this state reach the world.
+        private static SignBlockEntity liveSign(CraftSign sign) {
+            BlockEntity entity = ((CraftWorld) sign.getWorld()).getHandle().getBlockEntity(sign.getPosition());
+            if (entity instanceof SignBlockEntity) {
+                return (SignBlockEntity) entity;
+            }
+            return new SignBlockEntity(sign.getPosition(), sign.getHandle());
         }
 
         @Override
@@ -660,52 +1452,4 @@ public class Vessel {
             update();
         }
     }
-
-    private static class BlockInfo {
-        private final CraftBlockState state;
-        private final int priority;
-
-        public BlockInfo(CraftBlockState state) {
-            this.state = state;
-            BlockData blockData = state.getBlockData();
-            Material block = state.getType();
-            if (blockData instanceof Sign ||
-                    blockData instanceof Switch ||
-                    blockData instanceof Rail ||
-                    blockData instanceof RedstoneWire ||
-                    blockData instanceof Ageable ||
-                    block == Material.TORCH ||
-                    block == Material.WALL_TORCH ||
-                    block == Material.REDSTONE_TORCH ||
-                    block == Material.REDSTONE_WALL_TORCH ||
-                    block == Material.SOUL_TORCH ||
-                    block == Material.SOUL_WALL_TORCH
-            ) {
-                Bukkit.getLogger().info("Found Attachable");
-                this.priority = 0;
-            } else {
-                this.priority = 1;
-            }
-        }
-
-        public CraftBlockState getState() {
-            return this.state;
-        }
-
-        public int getPriority() {
-            return this.priority;
-        }
-
-        public int getX() {
-            return this.state.getX();
-        }
-
-        public int getY() {
-            return this.state.getY();
-        }
-
-        public int getZ() {
-            return this.state.getZ();
-        }
-    }
 }
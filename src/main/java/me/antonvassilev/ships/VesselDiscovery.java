@@ -0,0 +1,199 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flood fills a vessel's hull from its license sign. The search only reads through a
+ * BlockAccess, so scan() can run on any thread. In game that is a SnapshotBlockAccess
+ * that starts out with just the chunk of the license sign: when the search reaches a
+ * chunk that hasn't been snapshotted, scan() sets the cells there aside and returns
+ * once it has run out of others, the main thread snapshots those chunks in
+ * fetchChunks(), and scan() is called again to carry on. Only the chunks the hull
+ * actually reaches are copied, a few at a time.
+ */
+public class VesselDiscovery {
+    private final BlockAccess blocks;
+    private final int startX;
+    private final int startY;
+    private final int startZ;
+    private final int maxBlocks;
+    // Set when chunks are snapshotted as the search reaches them, null otherwise.
+    private final World world;
+    private final SnapshotBlockAccess snapshots;
+    private final int chunkRadius;
+
+    // Search state, kept between calls to scan() while chunks are fetched.
+    private final LongOpenHashSet visited = new LongOpenHashSet();
+    private final LongArrayFIFOQueue workList = new LongArrayFIFOQueue();
+    private final LongArrayList positions = new LongArrayList();
+    private final List<BlockState> states = new ArrayList<>();
+    // Chunk -> queued cells in it, waiting for the chunk to be snapshotted.
+    private final Long2ObjectOpenHashMap<LongArrayList> deferred = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * @param blocks    BlockAccess the blocks to search, must be safe to read from the
+     *                  thread that calls scan()
+     * @param startX    int x of the license sign
+     * @param startY    int y of the license sign
+     * @param startZ    int z of the license sign
+     * @param maxBlocks int the scan stops after this many hull blocks
+     */
+    public VesselDiscovery(BlockAccess blocks, int startX, int startY, int startZ, int maxBlocks) {
+        this(blocks, null, null, 0, startX, startY, startZ, maxBlocks);
+    }
+
+    private VesselDiscovery(BlockAccess blocks, World world, SnapshotBlockAccess snapshots, int chunkRadius,
+                            int startX, int startY, int startZ, int maxBlocks) {
+        this.blocks = blocks;
+        this.world = world;
+        this.snapshots = snapshots;
+        this.chunkRadius = chunkRadius;
+        this.startX = startX;
+        this.startY = startY;
+        this.startZ = startZ;
+        this.maxBlocks = maxBlocks;
+        long start = BlockPos.asLong(startX, startY, startZ);
+        visited.add(start);
+        workList.enqueue(start);
+    }
+
+    /**
+     * Prepares a discovery that snapshots chunks as the search reaches them, starting
+     * with the chunk of the start block. Must be called on the main thread. Unloaded
+     * chunks and chunks further than chunkRadius from the start act as the edge of the
+     * search.
+     *
+     * @param start       Block the license sign
+     * @param chunkRadius int how many chunks around the start chunk the search may reach
+     * @param maxBlocks   int the scan stops after this many hull blocks
+     * @return a discovery that can be scanned off the main thread
+     */
+    public static VesselDiscovery startingAt(Block start, int chunkRadius, int maxBlocks) {
+        SnapshotBlockAccess snapshots = SnapshotBlockAccess.empty(start.getWorld());
+        snapshots.add(start.getWorld(), LongSets.singleton(ChunkPos.asLong(start.getX() >> 4, start.getZ() >> 4)));
+        return new VesselDiscovery(snapshots, start.getWorld(), snapshots, chunkRadius,
+                start.getX(), start.getY(), start.getZ(), maxBlocks);
+    }
+
+    /**
+     * Runs a breadth first search over the blocks, starting at the license sign. Air and
+     * liquids end the hull. Cells are marked visited when they are queued, so every cell is
+     * read at most once.
+     *
+     * @return the hull blocks in the order they were found, or null if the search has
+     * reached chunks that have to be fetched before it can go on
+     */
+    public Result scan() {
+        while (!workList.isEmpty() && positions.size() < maxBlocks) {
+            long cell = workList.dequeueLong();
+            int x = BlockPos.getX(cell);
+            int y = BlockPos.getY(cell);
+            int z = BlockPos.getZ(cell);
+            BlockState state = blocks.getBlockState(x, y, z);
+            if (state == null) {
+                deferIfFetchable(cell, x >> 4, z >> 4);
+                continue;
+            }
+            if (isOpen(state)) {
+                continue;
+            }
+
+            positions.add(cell);
+            states.add(state);
+
+            enqueue(x, y + 1, z);
+            enqueue(x, y - 1, z);
+            enqueue(x + 1, y, z);
+            enqueue(x - 1, y, z);
+            enqueue(x, y, z - 1);
+            enqueue(x, y, z + 1);
+        }
+        if (!deferred.isEmpty() && positions.size() < maxBlocks) {
+            return null;
+        }
+        return new Result(positions.toLongArray(), states.toArray(new BlockState[0]));
+    }
+
+    /**
+     * Snapshots the chunks the last scan() stopped at and queues their cells again. Must
+     * be called on the main thread, between scans.
+     */
+    public void fetchChunks() {
+        snapshots.add(world, deferred.keySet());
+        for (LongArrayList cells : deferred.values()) {
+            for (int i = 0; i < cells.size(); i++) {
+                workList.enqueue(cells.getLong(i));
+            }
+        }
+        deferred.clear();
+    }
+
+    // Sets a cell aside if it couldn't be read only because its chunk hasn't been
+    // snapshotted yet.
+    private void deferIfFetchable(long cell, int chunkX, int chunkZ) {
+        long chunk = ChunkPos.asLong(chunkX, chunkZ);
+        if (snapshots == null || snapshots.isRequested(chunk)
+                || Math.abs(chunkX - (startX >> 4)) > chunkRadius || Math.abs(chunkZ - (startZ >> 4)) > chunkRadius) {
+            return;
+        }
+        LongArrayList cells = deferred.get(chunk);
+        if (cells == null) {
+            cells = new LongArrayList();
+            deferred.put(chunk, cells);
+        }
+        cells.add(cell);
+    }
+
+    private void enqueue(int x, int y, int z) {
+        if (y < blocks.getMinY() || y >= blocks.getMaxY()) {
+            return;
+        }
+        long cell = BlockPos.asLong(x, y, z);
+        if (visited.add(cell)) {
+            workList.enqueue(cell);
+        }
+    }
+
+    private static boolean isOpen(BlockState state) {
+        return state.isAir() || state.is(Blocks.WATER) || state.is(Blocks.LAVA);
+    }
+
+    /**
+     * Hull blocks found by a scan, as world positions packed with BlockPos.asLong and their
+     * NMS block states.
+     */
+    public static class Result {
+        private final long[] positions;
+        private final BlockState[] states;
+
+        Result(long[] positions, BlockState[] states) {
+            this.positions = positions;
+            this.states = states;
+        }
+
+        public int size() {
+            return positions.length;
+        }
+
+        public long getPosition(int index) {
+            return positions[index];
+        }
+
+        public BlockState getState(int index) {
+            return states[index];
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Keeps only the vessels whose chunks are loaded in memory. A vessel is evicted to a small
+ * descriptor (name, world and the chunks it occupies) when one of its chunks unloads, and
+ * read back from the VesselStore once all of its chunks are loaded again. The active
+ * vessels live in the shared vessels map that the scheduler and event handlers use.
+ */
+public class VesselFleet implements Listener {
+    private final Plugin owningPlugin;
+    private final HashMap<String, Vessel> vessels;
+    private final VesselIndex index;
+    private final VesselStore store;
+    private final HashMap<String, Descriptor> dormant = new HashMap<>();
+    // World -> chunk -> dormant vessels with a block in that chunk.
+    private final HashMap<UUID, Long2ObjectOpenHashMap<List<Descriptor>>> dormantByChunk = new HashMap<>();
+
+    public VesselFleet(Plugin owningPlugin, HashMap<String, Vessel> vessels, VesselIndex index, VesselStore store) {
+        this.owningPlugin = owningPlugin;
+        this.vessels = vessels;
+        this.index = index;
+        this.store = store;
+    }
+
+    /**
+     * Reads the store and registers every vessel as dormant, then activates the ones whose
+     * chunks are already loaded. Moves the journal holds as unsaved are redone first.
+     *
+     * @param journal MoveJournal of the previous run
+     */
+    public void load(MoveJournal journal) {
+        List<VesselStore.Record> records = store.load();
+        journal.recover(records, store);
+        for (VesselStore.Record record : records) {
+            addDormant(new Descriptor(record.name, record.worldId, footprintOf(record)));
+        }
+        owningPlugin.getLogger().info("Loaded " + records.size() + " vessels");
+        for (Descriptor descriptor : new ArrayList<>(dormant.values())) {
+            tryActivate(descriptor);
+        }
+    }
+
+    public int getActiveCount() {
+        return vessels.size();
+    }
+
+    public int getDormantCount() {
+        return dormant.size();
+    }
+
+    /**
+     * @return true if a vessel of that name is active or waiting for its chunks to load
+     */
+    public boolean isRegistered(String name) {
+        return vessels.containsKey(name) || dormant.containsKey(name);
+    }
+
+    @EventHandler
+    public void onChunkLoad(ChunkLoadEvent event) {
+        Long2ObjectOpenHashMap<List<Descriptor>> chunks = dormantByChunk.get(event.getWorld().getUID());
+        if (chunks == null) {
+            return;
+        }
+        Chunk chunk = event.getChunk();
+        List<Descriptor> waiting = chunks.get(ChunkPos.asLong(chunk.getX(), chunk.getZ()));
+        if (waiting == null) {
+            return;
+        }
+        for (Descriptor descriptor : new ArrayList<>(waiting)) {
+            tryActivate(descriptor);
+        }
+    }
+
+    @EventHandler
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        long chunkKey = ChunkPos.asLong(chunk.getX(), chunk.getZ());
+        Iterator<Vessel> it = vessels.values().iterator();
+        List<Vessel> evicted = new ArrayList<>();
+        while (it.hasNext()) {
+            Vessel vessel = it.next();
+            if (vessel.getWorld().equals(event.getWorld()) && vessel.occupiesChunk(chunkKey)) {
+                it.remove();
+                evicted.add(vessel);
+            }
+        }
+        for (Vessel vessel : evicted) {
+            evict(vessel);
+        }
+    }
+
+    // Writes the vessel out and keeps only its descriptor. A vessel holds the chunks of a
+    // move until its last block is written, so none is left to finish here, where writing
+    // could load the neighbouring chunks back in.
+    private void evict(Vessel vessel) {
+        // A ghost voyage lands first, as landing moves the vessel to where it is stored.
+        vessel.setSailing(false);
+        store.flush(Collections.singletonList(vessel));
+        vessel.deactivate();
+        addDormant(new Descriptor(vessel.getName(), vessel.getWorld().getUID(), vessel.getChunkFootprint()));
+    }
+
+    // Reads the vessel back once every chunk it occupies is loaded.
+    private void tryActivate(Descriptor descriptor) {
+        World world = Bukkit.getWorld(descriptor.worldId);
+        if (descriptor.activating || world == null || !allLoaded(world, descriptor)) {
+            return;
+        }
+        descriptor.activating = true;
+        store.read(descriptor.name).whenComplete((record, error) ->
+                Bukkit.getScheduler().runTask(owningPlugin, () -> finishActivation(descriptor, record, error)));
+    }
+
+    private void finishActivation(Descriptor descriptor, VesselStore.Record record, Throwable error) {
+        descriptor.activating = false;
+        if (dormant.get(descriptor.name) != descriptor) {
+            return;
+        }
+        if (error != null || record == null) {
+            owningPlugin.getLogger().warning("Could not read vessel " + descriptor.name + " from the store");
+            removeDormant(descriptor);
+            return;
+        }
+        World world = Bukkit.getWorld(descriptor.worldId);
+        if (world == null || !allLoaded(world, descriptor)) {
+            // A chunk unloaded while the record was being read; the next load retries.
+            return;
+        }
+        Vessel vessel = Vessel.restore(owningPlugin, index, record);
+        removeDormant(descriptor);
+        if (vessel == null) {
+            owningPlugin.getLogger().warning("Could not restore vessel " + descriptor.name + ", its license sign is gone");
+            store.remove(descriptor.name);
+            return;
+        }
+        vessels.put(vessel.getName(), vessel);
+        store.markPersisted(vessel);
+    }
+
+    private static boolean allLoaded(World world, Descriptor descriptor) {
+        for (long chunk : descriptor.chunks) {
+            if (!world.isChunkLoaded(ChunkPos.getX(chunk), ChunkPos.getZ(chunk))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addDormant(Descriptor descriptor) {
+        Descriptor previous = dormant.put(descriptor.name, descriptor);
+        if (previous != null) {
+            removeFromChunks(previous);
+        }
+        Long2ObjectOpenHashMap<List<Descriptor>> chunks =
+                dormantByChunk.computeIfAbsent(descriptor.worldId, id -> new Long2ObjectOpenHashMap<>());
+        for (long chunk : descriptor.chunks) {
+            List<Descriptor> waiting = chunks.get(chunk);
+            if (waiting == null) {
+                waiting = new ArrayList<>(1);
+                chunks.put(chunk, waiting);
+            }
+            waiting.add(descriptor);
+        }
+    }
+
+    private void removeDormant(Descriptor descriptor) {
+        dormant.remove(descriptor.name, descriptor);
+        removeFromChunks(descriptor);
+    }
+
+    private void removeFromChunks(Descriptor descriptor) {
+        Long2ObjectOpenHashMap<List<Descriptor>> chunks = dormantByChunk.get(descriptor.worldId);
+        if (chunks == null) {
+            return;
+        }
+        for (long chunk : descriptor.chunks) {
+            List<Descriptor> waiting = chunks.get(chunk);
+            if (waiting != null) {
+                waiting.remove(descriptor);
+                if (waiting.isEmpty()) {
+                    chunks.remove(chunk);
+                }
+            }
+        }
+    }
+
+    private static long[] footprintOf(VesselStore.Record record) {
+        LongOpenHashSet chunks = new LongOpenHashSet();
+        for (long position : record.positions) {
+            chunks.add(ChunkPos.asLong((record.originX + BlockPos.getX(position)) >> 4,
+                    (record.originZ + BlockPos.getZ(position)) >> 4));
+        }
+        return chunks.toLongArray();
+    }
+
+    /**
+     * What stays in memory for a vessel whose chunks are not loaded.
+     */
+    private static class Descriptor {
+        final String name;
+        final UUID worldId;
+        final long[] chunks;
+        boolean activating = false;
+
+        Descriptor(String name, UUID worldId, long[] chunks) {
+            this.name = name;
+            this.worldId = worldId;
+            this.chunks = chunks;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package me.antonvassilev.ships;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Maps block positions to the vessel that owns them. Each world keeps a primitive map from
+ * packed block position to an int entry holding the vessel id and, for control signs, the
+ * sign type. Looking up a block costs one hash lookup and allocates nothing.
+ */
+public class VesselIndex {
+    public static final int NOT_INDEXED = -1;
+    // Low bits of an entry hold the sign type, 0 for plain hull blocks.
+    private static final int SIGN_TYPE_BITS = 3;
+    private static final int SIGN_TYPE_MASK = (1 << SIGN_TYPE_BITS) - 1;
+    private static final Vessel.ShipSignType[] SIGN_TYPES = Vessel.ShipSignType.values();
+
+    private final HashMap<UUID, Long2IntOpenHashMap> worlds = new HashMap<>();
+    private final Int2ObjectOpenHashMap<Vessel> vessels = new Int2ObjectOpenHashMap<>();
+    private int nextId = 0;
+
+    /**
+     * @return the id to use for the vessel's index entries
+     */
+    public int register(Vessel vessel) {
+        int id = nextId++;
+        vessels.put(id, vessel);
+        return id;
+    }
+
+    public void unregister(int vesselId) {
+        vessels.remove(vesselId);
+    }
+
+    /**
+     * @return the entry for the block, or NOT_INDEXED if it doesn't belong to a vessel
+     */
+    public int lookup(Block block) {
+        return lookup(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    public int lookup(World world, int x, int y, int z) {
+        Long2IntOpenHashMap cells = worlds.get(world.getUID());
+        if (cells == null) {
+            return NOT_INDEXED;
+        }
+        return cells.get(BlockPos.asLong(x, y, z));
+    }
+
+    public Vessel getVessel(int entry) {
+        return vessels.get(entry >>> SIGN_TYPE_BITS);
+    }
+
+    /**
+     * @return the control sign type of the entry, or null for plain hull blocks
+     */
+    public static Vessel.ShipSignType getSignType(int entry) {
+        int type = entry & SIGN_TYPE_MASK;
+        return type == 0 ? null : SIGN_TYPES[type - 1];
+    }
+
+    public void put(World world, int x, int y, int z, int vesselId, Vessel.ShipSignType signType) {
+        int type = signType == null ? 0 : signType.ordinal() + 1;
+        cells(world).put(BlockPos.asLong(x, y, z), (vesselId << SIGN_TYPE_BITS) | type);
+    }
+
+    public void remove(World world, int x, int y, int z) {
+        cells(world).remove(BlockPos.asLong(x, y, z));
+    }
+
+    /**
+     * Indexes every hull block at the given origin as a plain hull block.
+     */
+    public void addHull(World world, Hull hull, int originX, int originY, int originZ, int vesselId) {
+        Long2IntOpenHashMap cells = cells(world);
+        int entry = vesselId << SIGN_TYPE_BITS;
+        for (int i = 0; i < hull.size(); i++) {
+            cells.put(BlockPos.asLong(originX + hull.getX(i), originY + hull.getY(i), originZ + hull.getZ(i)), entry);
+        }
+    }
+
+    /**
+     * Removes every hull block at the given origin from the index.
+     */
+    public void removeHull(World world, Hull hull, int originX, int originY, int originZ) {
+        Long2IntOpenHashMap cells = cells(world);
+        for (int i = 0; i < hull.size(); i++) {
+            cells.remove(BlockPos.asLong(originX + hull.getX(i), originY + hull.getY(i), originZ + hull.getZ(i)));
+        }
+    }
+
+    private Long2IntOpenHashMap cells(World world) {
+        Long2IntOpenHashMap cells = worlds.get(world.getUID());
+        if (cells == null) {
+            cells = new Long2IntOpenHashMap();
+            cells.defaultReturnValue(NOT_INDEXED);
+            worlds.put(world.getUID(), cells);
+        }
+        return cells;
+    }
+}
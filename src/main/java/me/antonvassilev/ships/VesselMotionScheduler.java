@@ -0,0 +1,163 @@
+package me.antonvassilev.ships;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Runs every tick and drives vessel motion. Vessels with work due - an engine step of a
+ * sailing vessel every stepInterval ticks, a requested step, turn or climb, or the
+ * remaining block writes of a move in flight - wait in a round-robin queue for their
+ * world. Each tick, every world's queue is served until its time budget or its
+ * blocksPerTick block budget runs out; a vessel that still has writes left goes to the
+ * back of the queue, and whatever wasn't served carries over to the next tick, first in
+ * line. Coinciding moves are therefore spread over several ticks instead of all running
+ * in one.
+ * Every resyncInterval ticks, vessels under way resend their hull to players that only
+ * just started tracking it.
+ */
+public class VesselMotionScheduler extends BukkitRunnable {
+    private final HashMap<String, Vessel> vessels;
+    private final int blocksPerTick;
+    private final int stepInterval;
+    private final int resyncInterval;
+    private final long budgetNanos;
+    private int tick = 0;
+    // Ticks left before each sailing vessel may start its next step.
+    private final Map<Vessel, Integer> cooldowns = new IdentityHashMap<>();
+    // World id -> vessels waiting to be served, in the order they'll get their turn.
+    private final Map<UUID, ArrayDeque<Vessel>> queues = new LinkedHashMap<>();
+    private final Set<Vessel> queued = Collections.newSetFromMap(new IdentityHashMap<>());
+    // System.nanoTime at which the work of each queued vessel became due, until it's started.
+    private final Map<Vessel, Long> waitingSince = new IdentityHashMap<>();
+
+    /**
+     * @param vessels        HashMap of the active vessels by name
+     * @param blocksPerTick  int maximum block writes per tick in each world
+     * @param stepInterval   int ticks between engine steps of a sailing vessel
+     * @param resyncInterval int ticks between checks for new viewers of moving vessels
+     * @param budgetMillis   double time the scheduler may spend per tick in each world
+     */
+    public VesselMotionScheduler(HashMap<String, Vessel> vessels, int blocksPerTick, int stepInterval,
+                                 int resyncInterval, double budgetMillis) {
+        this.vessels = vessels;
+        this.blocksPerTick = Math.max(1, blocksPerTick);
+        this.stepInterval = Math.max(1, stepInterval);
+        this.resyncInterval = Math.max(1, resyncInterval);
+        this.budgetNanos = (long) (Math.max(0, budgetMillis) * 1_000_000);
+    }
+
+    @Override
+    public void run() {
+        if (++tick % resyncInterval == 0) {
+            for (Vessel vessel : vessels.values()) {
+                if (vessel.isSailing() || vessel.isMoving()) {
+                    vessel.resyncViewers();
+                }
+            }
+        }
+
+        Set<Vessel> active = Collections.newSetFromMap(new IdentityHashMap<>());
+        active.addAll(vessels.values());
+        long now = System.nanoTime();
+        for (Vessel vessel : active) {
+            if (!queued.contains(vessel) && hasWorkDue(vessel)) {
+                queued.add(vessel);
+                waitingSince.put(vessel, now);
+                queues.computeIfAbsent(vessel.getWorld().getUID(), id -> new ArrayDeque<>()).add(vessel);
+            }
+        }
+        cooldowns.keySet().retainAll(active);
+
+        Iterator<ArrayDeque<Vessel>> it = queues.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Vessel> queue = it.next();
+            // Vessels deactivated while waiting are dropped.
+            queue.removeIf(vessel -> {
+                if (active.contains(vessel)) {
+                    return false;
+                }
+                queued.remove(vessel);
+                waitingSince.remove(vessel);
+                return true;
+            });
+            if (queue.isEmpty()) {
+                it.remove();
+                continue;
+            }
+            serveWorld(queue);
+        }
+    }
+
+    private void serveWorld(ArrayDeque<Vessel> queue) {
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        ShipStats.global().recordQueueDepth(queue.size());
+        // Every waiting vessel gets an equal share of the block budget per turn. Shares a
+        // small vessel doesn't use are left for the turns after it.
+        int share = Math.max(1, blocksPerTick / queue.size());
+        int remaining = blocksPerTick;
+        boolean served = false;
+        // Turns served in a row without writing anything, e.g. while moves are still being
+        // planned. Once every vessel had one there's nothing more to do this tick.
+        int idle = 0;
+        while (!queue.isEmpty() && remaining > 0 && idle < queue.size()
+                && (!served || System.nanoTime() < deadline)) {
+            Vessel vessel = queue.poll();
+            int written = serve(vessel, Math.min(share, remaining));
+            remaining -= written;
+            served = true;
+            idle = written == 0 ? idle + 1 : 0;
+            if (vessel.isMoving()) {
+                queue.add(vessel);
+            } else {
+                queued.remove(vessel);
+            }
+        }
+        ShipStats.global().recordTick(blocksPerTick - remaining);
+        ShipStats.global().time(ShipStats.Timing.SCHEDULER_TICK, start);
+    }
+
+    // Returns whether the vessel has a move or turn to perform.
+    private boolean hasWorkDue(Vessel vessel) {
+        if (vessel.isMoving()) {
+            return true;
+        }
+        if (vessel.isSailing() && vessel.getMotionMode() == Vessel.MotionMode.GHOST) {
+            // Ghost voyages glide every tick and don't write blocks until they stop.
+            vessel.tickGhost(stepInterval);
+            return false;
+        }
+        int cooldown = cooldowns.getOrDefault(vessel, 0);
+        if (cooldown > 0) {
+            cooldowns.put(vessel, cooldown - 1);
+        }
+        return vessel.hasTurnRequest() || vessel.hasClimbRequest() || vessel.hasStepRequest()
+                || (vessel.isSailing() && cooldown <= 0);
+    }
+
+    // Starts the vessel's due work if it hasn't been started yet and writes up to budget
+    // blocks of its move. Returns the number of blocks written.
+    private int serve(Vessel vessel, int budget) {
+        Long since = waitingSince.remove(vessel);
+        if (since != null) {
+            vessel.getStats().record(ShipStats.Timing.QUEUE_WAIT, System.nanoTime() - since);
+        }
+        if (!vessel.isMoving() && !vessel.runTurnRequest() && !vessel.runClimbRequest()) {
+            boolean requested = vessel.takeStepRequest();
+            if (requested || vessel.isSailing()) {
+                vessel.beginMoveForward();
+                cooldowns.put(vessel, stepInterval);
+            }
+        }
+        return vessel.continueMove(budget);
+    }
+}
@@ -0,0 +1,562 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.core.BlockPos;
+import org.bukkit.craftbukkit.v1_18_R2.block.data.CraftBlockData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only binary store for vessels. A full record (name, world, origin, signs, engine
+ * velocity, hull) is appended when a vessel is created or its hull changes, and a small
+ * state record (origin and velocity) when it only moved. On startup the file is memory
+ * mapped and replayed, with later records replacing earlier ones, so loading never has
+ * to rescan a hull. The store remembers where the latest records of each vessel are, so
+ * a single vessel can be read back later, and the file is rewritten with only the live
+ * records once it has grown to several times their size.
+ *
+ * Records are framed as [int length][byte type][payload], with length counting the type
+ * byte and payload. A torn record at the end of the file is dropped on load.
+ */
+public class VesselStore {
+    private static final int MAGIC = 0x53485053; // "SHPS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte RECORD_HULL = 1;
+    private static final byte RECORD_STATE = 2;
+    private static final byte RECORD_REMOVE = 3;
+    // Compact once the file holds this many times the bytes of the live records.
+    private static final int COMPACTION_RATIO = 4;
+    private static final long COMPACTION_MIN_BYTES = 1 << 20;
+
+    private final File file;
+    private final Logger logger;
+    // All file access happens on this thread, in submission order.
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Ships vessel store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Location of the latest hull and state record per vessel. Only touched on the writer
+    // thread, apart from load() which runs before anything is submitted to it.
+    private final Map<String, Frame> hullFrames = new HashMap<>();
+    private final Map<String, Frame> stateFrames = new HashMap<>();
+    private long fileBytes = 0;
+    private long liveBytes = 0;
+    // Versions of each vessel that were last handed to the writer. Main thread only.
+    private final Map<String, Persisted> persisted = new HashMap<>();
+
+    public VesselStore(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Reads every live record from the store. Must be called before any writes.
+     *
+     * @return latest record of each stored vessel
+     */
+    public List<Record> load() {
+        LinkedHashMap<String, Record> records = new LinkedHashMap<>();
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return new ArrayList<>();
+        }
+        long validLength = HEADER_SIZE;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                logger.severe("Unrecognised vessel store " + file + ", ignoring it");
+                return new ArrayList<>();
+            }
+            while (buffer.remaining() >= 5) {
+                long offset = buffer.position();
+                int length = buffer.getInt();
+                if (length < 1 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(buffer.position() + length);
+
+                byte type = payload.get();
+                applyRecord(records, type, payload, new Frame(offset, length + 4));
+                validLength = buffer.position();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to read vessel store " + file, e);
+        }
+
+        fileBytes = validLength;
+        if (validLength < file.length()) {
+            logger.warning("Dropping incomplete record at the end of " + file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to truncate vessel store " + file, e);
+            }
+        }
+        return new ArrayList<>(records.values());
+    }
+
+    private void applyRecord(Map<String, Record> records, byte type, ByteBuffer payload, Frame frame) {
+        String name = getString(payload);
+        switch (type) {
+            case RECORD_HULL: {
+                records.put(name, readHull(name, payload));
+                trackHull(name, frame);
+                break;
+            }
+            case RECORD_STATE: {
+                Record record = records.get(name);
+                if (record != null) {
+                    readState(record, payload);
+                    trackState(name, frame);
+                }
+                break;
+            }
+            case RECORD_REMOVE: {
+                records.remove(name);
+                forget(name);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Marks the current versions of a vessel as already persisted, for vessels that were
+     * just restored from this store.
+     */
+    public void markPersisted(Vessel vessel) {
+        persisted.put(vessel.getName(), new Persisted(vessel));
+    }
+
+    /**
+     * Appends records for every vessel that changed since the last flush. Records are
+     * encoded on the calling thread and written on the store's writer thread.
+     *
+     * @param vessels Collection of all registered vessels
+     */
+    public void flush(Collection<Vessel> vessels) {
+        for (Vessel vessel : vessels) {
+            Persisted last = persisted.get(vessel.getName());
+            byte[] record;
+            boolean fullRecord;
+            if (last == null || last.vessel != vessel || last.hullVersion != vessel.getHullVersion()) {
+                record = encodeHull(vessel);
+                fullRecord = true;
+            } else if (last.stateVersion != vessel.getStateVersion()) {
+                record = encodeState(vessel);
+                fullRecord = false;
+            } else {
+                continue;
+            }
+            persisted.put(vessel.getName(), new Persisted(vessel));
+            String name = vessel.getName();
+            writer.execute(() -> append(name, record, fullRecord));
+        }
+    }
+
+    /**
+     * Reads the latest record of a single vessel back from the file. The read is queued
+     * behind any pending writes, so it sees everything flushed before the call.
+     *
+     * @param name String vessel name
+     * @return future completed on the writer thread with the record, or null if the store
+     * doesn't hold the vessel
+     */
+    public CompletableFuture<Record> read(String name) {
+        CompletableFuture<Record> future = new CompletableFuture<>();
+        try {
+            writer.execute(() -> {
+                try {
+                    future.complete(readRecord(name));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Appends a full record written from the given record rather than from a vessel, for
+     * records corrected before their vessels are registered.
+     *
+     * @param record Record holding the whole hull
+     */
+    public void rewrite(Record record) {
+        byte[] encoded = encodeRecord(record);
+        String name = record.name;
+        writer.execute(() -> append(name, encoded, true));
+    }
+
+    /**
+     * Appends a record dropping the vessel from the store.
+     */
+    public void remove(String name) {
+        if (persisted.remove(name) == null) {
+            return;
+        }
+        byte[] record = frame(RECORD_REMOVE, out -> putString(out, name));
+        writer.execute(() -> {
+            forget(name);
+            write(record);
+        });
+    }
+
+    /**
+     * Flushes the given vessels and waits for all pending writes to reach the disk.
+     */
+    public void close(Collection<Vessel> vessels) {
+        flush(vessels);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.severe("Timed out writing the vessel store");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //
+    // Writer thread
+    //
+
+    private void append(String name, byte[] record, boolean fullRecord) {
+        Frame frame = write(record);
+        if (frame == null) {
+            return;
+        }
+        if (fullRecord) {
+            trackHull(name, frame);
+        } else {
+            trackState(name, frame);
+        }
+        if (fileBytes > COMPACTION_MIN_BYTES && fileBytes > liveBytes * COMPACTION_RATIO) {
+            compact();
+        }
+    }
+
+    private void trackHull(String name, Frame frame) {
+        forget(name);
+        hullFrames.put(name, frame);
+        liveBytes += frame.length;
+    }
+
+    private void trackState(String name, Frame frame) {
+        Frame previous = stateFrames.put(name, frame);
+        liveBytes += frame.length - (previous == null ? 0 : previous.length);
+    }
+
+    private void forget(String name) {
+        Frame hull = hullFrames.remove(name);
+        Frame state = stateFrames.remove(name);
+        liveBytes -= (hull == null ? 0 : hull.length) + (state == null ? 0 : state.length);
+    }
+
+    // Appends a framed record and returns where it landed, or null if the write failed.
+    private Frame write(byte[] record) {
+        try {
+            if (!file.isFile() || file.length() < HEADER_SIZE) {
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(), header());
+                fileBytes = HEADER_SIZE;
+            }
+            Files.write(file.toPath(), record, StandardOpenOption.APPEND);
+            Frame frame = new Frame(fileBytes, record.length);
+            fileBytes += record.length;
+            return frame;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to write vessel store " + file, e);
+            return null;
+        }
+    }
+
+    private Record readRecord(String name) throws IOException {
+        Frame hullFrame = hullFrames.get(name);
+        if (hullFrame == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer hull = readFrame(channel, hullFrame);
+            hull.position(4 + 1);
+            Record record = readHull(getString(hull), hull);
+            Frame stateFrame = stateFrames.get(name);
+            if (stateFrame != null) {
+                ByteBuffer state = readFrame(channel, stateFrame);
+                state.position(4 + 1);
+                getString(state);
+                readState(record, state);
+            }
+            return record;
+        }
+    }
+
+    private static ByteBuffer readFrame(FileChannel channel, Frame frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, frame.offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of vessel store");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Rewrites the store with only the latest records, then swaps it in.
+    private void compact() {
+        File temp = new File(file.getPath() + ".tmp");
+        Map<String, Frame> newHullFrames = new HashMap<>();
+        Map<String, Frame> newStateFrames = new HashMap<>();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) liveBytes + HEADER_SIZE);
+            bytes.write(header());
+            for (Map.Entry<String, Frame> entry : hullFrames.entrySet()) {
+                newHullFrames.put(entry.getKey(), new Frame(bytes.size(), entry.getValue().length));
+                bytes.write(readFrame(source, entry.getValue()).array());
+                Frame state = stateFrames.get(entry.getKey());
+                if (state != null) {
+                    newStateFrames.put(entry.getKey(), new Frame(bytes.size(), state.length));
+                    bytes.write(readFrame(source, state).array());
+                }
+            }
+            Files.write(temp.toPath(), bytes.toByteArray());
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            fileBytes = bytes.size();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to compact vessel store " + file, e);
+            return;
+        }
+        hullFrames.clear();
+        hullFrames.putAll(newHullFrames);
+        stateFrames.clear();
+        stateFrames.putAll(newStateFrames);
+    }
+
+    //
+    // Encoding
+    //
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).array();
+    }
+
+    private static byte[] encodeHull(Vessel vessel) {
+        Hull hull = vessel.getHull();
+        return frame(RECORD_HULL, out -> {
+            putString(out, vessel.getName());
+            UUID worldId = vessel.getWorld().getUID();
+            out.writeLong(worldId.getMostSignificantBits());
+            out.writeLong(worldId.getLeastSignificantBits());
+            writeState(out, vessel);
+            writeSignOffset(out, vessel, vessel.getEngineSign());
+            writeSignOffset(out, vessel, vessel.getSteeringSign());
+
+            out.writeInt(hull.getPaletteSize());
+            for (int id = 0; id < hull.getPaletteSize(); id++) {
+                putString(out, CraftBlockData.fromData(hull.getPaletteState(id)).getAsString());
+            }
+            out.writeInt(hull.size());
+            for (int i = 0; i < hull.size(); i++) {
+                out.writeLong(hull.getPosition(i));
+                out.writeInt(hull.getStateId(i));
+            }
+        });
+    }
+
+    // Same layout as encodeHull.
+    private static byte[] encodeRecord(Record record) {
+        return frame(RECORD_HULL, out -> {
+            putString(out, record.name);
+            out.writeLong(record.worldId.getMostSignificantBits());
+            out.writeLong(record.worldId.getLeastSignificantBits());
+            out.writeInt(record.originX);
+            out.writeInt(record.originY);
+            out.writeInt(record.originZ);
+            out.writeInt(record.velocity);
+            for (Long offset : new Long[]{record.engineSignOffset, record.steeringSignOffset}) {
+                out.writeBoolean(offset != null);
+                if (offset != null) {
+                    out.writeLong(offset);
+                }
+            }
+
+            out.writeInt(record.palette.length);
+            for (String state : record.palette) {
+                putString(out, state);
+            }
+            out.writeInt(record.positions.length);
+            for (int i = 0; i < record.positions.length; i++) {
+                out.writeLong(record.positions[i]);
+                out.writeInt(record.stateIds[i]);
+            }
+        });
+    }
+
+    private static byte[] encodeState(Vessel vessel) {
+        return frame(RECORD_STATE, out -> {
+            putString(out, vessel.getName());
+            writeState(out, vessel);
+        });
+    }
+
+    private static void writeState(DataOutputStream out, Vessel vessel) throws IOException {
+        out.writeInt(vessel.getOriginX());
+        out.writeInt(vessel.getOriginY());
+        out.writeInt(vessel.getOriginZ());
+        out.writeInt(vessel.getVelocity());
+    }
+
+    // Signs are stored relative to the origin, so moving a vessel doesn't change them.
+    private static void writeSignOffset(DataOutputStream out, Vessel vessel, Vessel.ShipSign sign)
+            throws IOException {
+        out.writeBoolean(sign != null);
+        if (sign != null) {
+            out.writeLong(BlockPos.asLong(sign.getX() - vessel.getOriginX(),
+                    sign.getY() - vessel.getOriginY(),
+                    sign.getZ() - vessel.getOriginZ()));
+        }
+    }
+
+    private static byte[] frame(byte type, RecordWriter body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            body.write(out);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            ByteBuffer.wrap(record).putInt(record.length - 4);
+            return record;
+        } catch (IOException e) {
+            // Writing to a byte array doesn't fail.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //
+    // Decoding
+    //
+
+    private static Record readHull(String name, ByteBuffer in) {
+        Record record = new Record(name, new UUID(in.getLong(), in.getLong()));
+        readState(record, in);
+        record.engineSignOffset = readSignOffset(in);
+        record.steeringSignOffset = readSignOffset(in);
+
+        record.palette = new String[in.getInt()];
+        for (int id = 0; id < record.palette.length; id++) {
+            record.palette[id] = getString(in);
+        }
+        int size = in.getInt();
+        record.positions = new long[size];
+        record.stateIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            record.positions[i] = in.getLong();
+            record.stateIds[i] = in.getInt();
+        }
+        return record;
+    }
+
+    private static void readState(Record record, ByteBuffer in) {
+        record.originX = in.getInt();
+        record.originY = in.getInt();
+        record.originZ = in.getInt();
+        record.velocity = in.getInt();
+    }
+
+    private static Long readSignOffset(ByteBuffer in) {
+        return in.get() != 0 ? in.getLong() : null;
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Frame {
+        final long offset;
+        final int length;
+
+        Frame(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static class Persisted {
+        final Vessel vessel;
+        final int hullVersion;
+        final int stateVersion;
+
+        Persisted(Vessel vessel) {
+            this.vessel = vessel;
+            this.hullVersion = vessel.getHullVersion();
+            this.stateVersion = vessel.getStateVersion();
+        }
+    }
+
+    /**
+     * A stored vessel. Hull positions are relative to the origin, packed with
+     * BlockPos.asLong, and index into the palette of block data strings.
+     */
+    public static class Record {
+        final String name;
+        final UUID worldId;
+        int originX;
+        int originY;
+        int originZ;
+        int velocity;
+        Long engineSignOffset;
+        Long steeringSignOffset;
+        String[] palette;
+        long[] positions;
+        int[] stateIds;
+
+        Record(String name, UUID worldId) {
+            this.name = name;
+            this.worldId = worldId;
+        }
+    }
+}
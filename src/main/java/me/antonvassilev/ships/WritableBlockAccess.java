@@ -0,0 +1,23 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.block.state.BlockState;
+
+/**
+ * BlockAccess that can also be written to, which is what a BlockWriteEngine commits to
+ * when it runs without a level.
+ */
+public interface WritableBlockAccess extends BlockAccess {
+    /**
+     * Writes a block state. Positions outside the build height are ignored.
+     */
+    void setBlockState(int x, int y, int z, BlockState state);
+
+    /**
+     * Loads saved data into the block entity at a position. Ignored where the block has
+     * no block entity.
+     *
+     * @param tag CompoundTag as saved by BlockEntity.saveWithoutMetadata
+     */
+    void setBlockEntityData(int x, int y, int z, CompoundTag tag);
+}
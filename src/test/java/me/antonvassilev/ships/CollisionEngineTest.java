@@ -0,0 +1,153 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CollisionEngineTest {
+    private static final int Y = 64;
+
+    private static BlockState planks;
+    private static BlockState stone;
+
+    private MemoryBlockAccess world;
+    private CollisionEngine collisions;
+
+    @BeforeClass
+    public static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        planks = Blocks.OAK_PLANKS.defaultBlockState();
+        stone = Blocks.STONE.defaultBlockState();
+    }
+
+    @Before
+    public void setUp() {
+        world = new MemoryBlockAccess(-64, 320);
+        collisions = new CollisionEngine(world);
+    }
+
+    @Test
+    public void waterAndPlantsAreClear() {
+        Hull hull = uHull();
+        world.setBlockState(6, Y, 0, Blocks.WATER.defaultBlockState());
+        world.setBlockState(3, Y, 2, Blocks.GRASS.defaultBlockState());
+        assertEquals(5, collisions.clearDistance(hull, 0, Y, 0, 1, 0, 0, 5));
+    }
+
+    @Test
+    public void obstacleAheadShortensTheMove() {
+        Hull hull = uHull();
+        // Two free cells between the tip of an arm and the obstacle.
+        world.setBlockState(7, Y, 0, stone);
+        assertEquals(2, collisions.clearDistance(hull, 0, Y, 0, 1, 0, 0, 5));
+        assertEquals(0, collisions.clearDistance(hull, 2, Y, 0, 1, 0, 0, 5));
+    }
+
+    @Test
+    public void obstacleInsideTheOpeningHitsTheBackWall() {
+        // The U opens towards +x, so the back wall sweeps through the opening.
+        Hull hull = uHull();
+        world.setBlockState(3, Y, 2, stone);
+        assertEquals(2, collisions.clearDistance(hull, 0, Y, 0, 1, 0, 0, 5));
+        // Moving away from it, nothing is in the way.
+        assertEquals(5, collisions.clearDistance(hull, 0, Y, 0, -1, 0, 0, 5));
+    }
+
+    @Test
+    public void obstacleInAHoleOnlyBlocksMovesThroughIt() {
+        // A ring around a single cell, with a block in the middle that isn't hull.
+        Hull hull = new Hull();
+        for (int x = 0; x < 3; x++) {
+            for (int z = 0; z < 3; z++) {
+                if (x != 1 || z != 1) {
+                    hull.add(x, 0, z, planks);
+                }
+            }
+        }
+        world.setBlockState(1, Y, 1, stone);
+        assertEquals(4, collisions.clearDistance(hull, 0, Y, 0, 0, 1, 0, 4));
+        assertEquals(4, collisions.clearDistance(hull, 0, Y, 0, 0, -1, 0, 4));
+        assertEquals(0, collisions.clearDistance(hull, 0, Y, 0, 1, 0, 0, 4));
+        assertEquals(0, collisions.clearDistance(hull, 0, Y, 0, 0, 0, -1, 4));
+    }
+
+    @Test
+    public void overhangDescendsOntoWhatIsUnderIt() {
+        // A deck on a single post, with a block under the far end of the deck.
+        Hull hull = new Hull();
+        hull.add(0, 0, 0, planks);
+        for (int x = 0; x < 5; x++) {
+            hull.add(x, 1, 0, planks);
+        }
+        world.setBlockState(4, Y - 2, 0, stone);
+        // The deck's underside lands on the block after two, before the post reaches it.
+        assertEquals(2, collisions.clearDistance(hull, 0, Y, 0, 0, -1, 0, 6));
+        // Under the post instead, which reaches it first.
+        world.setBlockState(4, Y - 2, 0, BlockWriteEngine.AIR);
+        world.setBlockState(0, Y - 4, 0, stone);
+        assertEquals(3, collisions.clearDistance(hull, 0, Y, 0, 0, -1, 0, 6));
+    }
+
+    @Test
+    public void overhangClimbsIntoWhatIsAboveIt() {
+        Hull hull = new Hull();
+        for (int x = 0; x < 5; x++) {
+            hull.add(x, 0, 0, planks);
+        }
+        hull.add(0, 1, 0, planks);
+        hull.add(0, 2, 0, planks);
+        // Above the bare end of the deck, lower than the top of the mast.
+        world.setBlockState(4, Y + 2, 0, stone);
+        assertEquals(1, collisions.clearDistance(hull, 0, Y, 0, 0, 1, 0, 6));
+    }
+
+    @Test
+    public void outsideTheBuildHeightIsBlocked() {
+        Hull hull = uHull();
+        assertEquals(3, collisions.clearDistance(hull, 0, 316, 0, 0, 1, 0, 10));
+    }
+
+    @Test
+    public void turnsOnlyCheckTheCellsTheHullTurnsInto() {
+        // An L turning left around its corner: (x, z) goes to (-z, x).
+        Hull hull = new Hull();
+        for (int x = 0; x < 4; x++) {
+            hull.add(x, 0, 0, planks);
+        }
+        hull.add(0, 0, 1, planks);
+        assertTrue(collisions.canRotate(hull, 0, Y, 0, 1));
+
+        // Inside the bounding box of the turned hull, but not in it.
+        world.setBlockState(-1, Y, 2, stone);
+        assertTrue(collisions.canRotate(hull, 0, Y, 0, 1));
+
+        // Where the long arm turns to.
+        world.setBlockState(0, Y, 3, stone);
+        assertFalse(collisions.canRotate(hull, 0, Y, 0, 1));
+        // Turning the other way takes it clear.
+        assertTrue(collisions.canRotate(hull, 0, Y, 0, -1));
+    }
+
+    // A U opening towards +x: a back wall along z at x = 0, and arms along x at z = 0 and
+    // z = 4.
+    private static Hull uHull() {
+        Hull hull = new Hull();
+        for (int z = 0; z < 5; z++) {
+            hull.add(0, 0, z, planks);
+        }
+        for (int x = 1; x < 5; x++) {
+            hull.add(x, 0, 0, planks);
+            hull.add(x, 0, 4, planks);
+        }
+        return hull;
+    }
+}
@@ -0,0 +1,132 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.StairBlock;
+import net.minecraft.world.level.block.state.BlockState;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HullPlannerTest {
+    private static final int ORIGIN_X = 100;
+    private static final int ORIGIN_Y = 64;
+    private static final int ORIGIN_Z = -20;
+
+    private static BlockState planks;
+    private static BlockState stone;
+    private static BlockState stairs;
+
+    @BeforeClass
+    public static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        planks = Blocks.OAK_PLANKS.defaultBlockState();
+        stone = Blocks.STONE.defaultBlockState();
+        stairs = Blocks.OAK_STAIRS.defaultBlockState().setValue(StairBlock.FACING, Direction.NORTH);
+    }
+
+    @Test
+    public void stepIntoItselfMatchesFullMove() {
+        assertMatchesFullMove(ringHull(), 1, 0, 0);
+        assertMatchesFullMove(ringHull(), 0, 0, -1);
+    }
+
+    @Test
+    public void stepAcrossHolesMatchesFullMove() {
+        // The ring is two blocks thick on each side, so a step of two lands every wall on
+        // the hole the opposite wall left.
+        assertMatchesFullMove(ringHull(), 2, 0, 0);
+        assertMatchesFullMove(ringHull(), 0, 0, 3);
+    }
+
+    @Test
+    public void verticalAndDiagonalMovesMatchFullMove() {
+        assertMatchesFullMove(ringHull(), 0, 1, 0);
+        assertMatchesFullMove(ringHull(), 0, -2, 0);
+        assertMatchesFullMove(ringHull(), 1, 1, -1);
+    }
+
+    @Test
+    public void moveClearOfItselfMatchesFullMove() {
+        assertMatchesFullMove(ringHull(), 12, 0, 0);
+    }
+
+    @Test
+    public void differentialMoveSkipsUnchangedCells() {
+        Hull hull = new Hull();
+        for (int x = 0; x < 10; x++) {
+            hull.add(x, 0, 0, planks);
+        }
+        MemoryBlockAccess world = worldWith(hull);
+        BlockWriteEngine engine = new BlockWriteEngine(world);
+        HullPlanner.queueDifferentialMove(engine, hull, ORIGIN_X + 1, ORIGIN_Y, ORIGIN_Z, 1, 0, 0);
+        // One cell left behind, one entered.
+        assertEquals(2, engine.size());
+        engine.commit();
+        assertSame(BlockWriteEngine.AIR, world.getBlockState(ORIGIN_X, ORIGIN_Y, ORIGIN_Z));
+        assertSame(planks, world.getBlockState(ORIGIN_X + 10, ORIGIN_Y, ORIGIN_Z));
+    }
+
+    // Moves the hull by (x, y, z) in two copies of a world, once by diff and once by
+    // clearing and rewriting it, and checks the worlds end up the same.
+    private static void assertMatchesFullMove(Hull hull, int x, int y, int z) {
+        MemoryBlockAccess differential = worldWith(hull);
+        MemoryBlockAccess full = worldWith(hull);
+
+        BlockWriteEngine engine = new BlockWriteEngine(differential);
+        HullPlanner.queueDifferentialMove(engine, hull, ORIGIN_X + x, ORIGIN_Y + y, ORIGIN_Z + z, x, y, z);
+        int differentialWrites = engine.size();
+        engine.commit();
+        engine = new BlockWriteEngine(full);
+        HullPlanner.queueFullMove(engine, hull, ORIGIN_X + x, ORIGIN_Y + y, ORIGIN_Z + z, x, y, z);
+        assertTrue(differentialWrites <= engine.size());
+        engine.commit();
+
+        assertEquals(full.size(), differential.size());
+        for (int wx = ORIGIN_X - 16; wx <= ORIGIN_X + 32; wx++) {
+            for (int wy = ORIGIN_Y - 8; wy <= ORIGIN_Y + 8; wy++) {
+                for (int wz = ORIGIN_Z - 16; wz <= ORIGIN_Z + 16; wz++) {
+                    assertSame("at " + wx + ", " + wy + ", " + wz,
+                            full.getBlockState(wx, wy, wz), differential.getBlockState(wx, wy, wz));
+                }
+            }
+        }
+    }
+
+    // A world holding the hull at the origin and a block next to it that isn't part of it.
+    private static MemoryBlockAccess worldWith(Hull hull) {
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        BlockWriteEngine engine = new BlockWriteEngine(world);
+        HullPlanner.queueHull(engine, hull, ORIGIN_X, ORIGIN_Y, ORIGIN_Z);
+        engine.commit();
+        world.setBlockState(ORIGIN_X - 3, ORIGIN_Y, ORIGIN_Z, Blocks.DIRT.defaultBlockState());
+        return world;
+    }
+
+    // A hollow 6x6 ring with walls two blocks thick and mixed states, a mast standing on
+    // one corner and a floor covering half of the hole, so that moves overlap the hull
+    // in some cells, leave gaps in others, and land blocks on cells of different states.
+    private static Hull ringHull() {
+        Hull hull = new Hull();
+        for (int x = 0; x < 6; x++) {
+            for (int z = 0; z < 6; z++) {
+                boolean wall = x < 2 || x > 3 || z < 2 || z > 3;
+                if (wall) {
+                    hull.add(x, 0, z, (x + z) % 3 == 0 ? stone : (x * z) % 4 == 1 ? stairs : planks);
+                } else if (x == 2) {
+                    hull.add(x, -1, z, stone);
+                }
+            }
+        }
+        for (int y = 1; y < 4; y++) {
+            hull.add(0, y, 0, y % 2 == 0 ? stone : planks);
+        }
+        return hull;
+    }
+}
@@ -0,0 +1,142 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.DoorBlock;
+import net.minecraft.world.level.block.LanternBlock;
+import net.minecraft.world.level.block.WallTorchBlock;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.DoubleBlockHalf;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HullTest {
+    private static BlockState planks;
+    private static BlockState torch;
+
+    @BeforeClass
+    public static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        planks = Blocks.OAK_PLANKS.defaultBlockState();
+        torch = Blocks.TORCH.defaultBlockState();
+    }
+
+    @Test
+    public void supportsComeBeforeWhatHangsOnThem() {
+        // Everything is added before what holds it up, so hull order is the wrong way round.
+        Hull hull = new Hull();
+        hull.add(1, 1, 0, Blocks.WALL_TORCH.defaultBlockState().setValue(WallTorchBlock.FACING, Direction.EAST));
+        hull.add(2, 1, 0, Blocks.RAIL.defaultBlockState());
+        BlockState door = Blocks.OAK_DOOR.defaultBlockState();
+        hull.add(3, 2, 0, door.setValue(DoorBlock.HALF, DoubleBlockHalf.UPPER));
+        hull.add(3, 1, 0, door.setValue(DoorBlock.HALF, DoubleBlockHalf.LOWER));
+        hull.add(4, 0, 0, Blocks.LANTERN.defaultBlockState().setValue(LanternBlock.HANGING, true));
+        hull.add(0, 1, 0, planks);
+        hull.add(2, 0, 0, planks);
+        hull.add(3, 0, 0, planks);
+        hull.add(4, 1, 0, planks);
+
+        int[] positions = positionsInOrder(hull);
+        // The wall torch faces east, away from the block behind it.
+        assertBefore(hull, positions, 0, 1, 0, 1, 1, 0);
+        assertBefore(hull, positions, 2, 0, 0, 2, 1, 0);
+        // The upper half of the door stands on the lower one.
+        assertBefore(hull, positions, 3, 0, 0, 3, 1, 0);
+        assertBefore(hull, positions, 3, 1, 0, 3, 2, 0);
+        assertBefore(hull, positions, 4, 1, 0, 4, 0, 0);
+    }
+
+    @Test
+    public void freeStandingBlocksKeepHullOrder() {
+        Hull hull = new Hull();
+        hull.add(0, 1, 0, torch);
+        hull.add(5, 0, 0, planks);
+        hull.add(0, 0, 0, planks);
+        hull.add(7, 0, 0, planks);
+
+        int[] order = hull.getPlacementOrder();
+        assertEquals(1, order[0]);
+        assertEquals(2, order[1]);
+        assertEquals(3, order[2]);
+        assertEquals(0, order[3]);
+    }
+
+    @Test
+    public void longChainsAreOrderedAllTheWay() {
+        // A column of torches standing on each other, much longer than any real build,
+        // added from the top down.
+        int height = 40;
+        Hull hull = new Hull();
+        for (int y = height; y > 0; y--) {
+            hull.add(0, y, 0, torch);
+        }
+        hull.add(0, 0, 0, planks);
+
+        int[] positions = positionsInOrder(hull);
+        for (int y = 1; y <= height; y++) {
+            assertBefore(hull, positions, 0, y - 1, 0, 0, y, 0);
+        }
+    }
+
+    @Test
+    public void loopsAreCut() {
+        // Two wall torches each claiming to hang on the other, and one hanging on them.
+        Hull hull = new Hull();
+        BlockState wallTorch = Blocks.WALL_TORCH.defaultBlockState();
+        hull.add(0, 0, 0, wallTorch.setValue(WallTorchBlock.FACING, Direction.WEST));
+        hull.add(1, 0, 0, wallTorch.setValue(WallTorchBlock.FACING, Direction.EAST));
+        hull.add(2, 0, 0, wallTorch.setValue(WallTorchBlock.FACING, Direction.EAST));
+        hull.add(5, 0, 0, planks);
+
+        int[] positions = positionsInOrder(hull);
+        assertEquals(0, positions[hull.indexOf(5, 0, 0)]);
+        assertBefore(hull, positions, 1, 0, 0, 2, 0, 0);
+    }
+
+    @Test
+    public void orderFollowsChangesToTheHull() {
+        Hull hull = new Hull();
+        hull.add(0, 1, 0, torch);
+        hull.add(1, 1, 0, planks);
+        positionsInOrder(hull);
+
+        hull.add(0, 0, 0, planks);
+        assertBefore(hull, positionsInOrder(hull), 0, 0, 0, 0, 1, 0);
+
+        // Removing the torch moves the last block into its place.
+        hull.remove(0);
+        assertEquals(2, positionsInOrder(hull).length);
+        hull.add(0, 1, 0, torch);
+        assertBefore(hull, positionsInOrder(hull), 0, 0, 0, 0, 1, 0);
+    }
+
+    // Checks the placement order holds every hull index once, and returns where in it each
+    // index is placed.
+    private static int[] positionsInOrder(Hull hull) {
+        int[] order = hull.getPlacementOrder();
+        assertEquals(hull.size(), order.length);
+        int[] positions = new int[hull.size()];
+        boolean[] seen = new boolean[hull.size()];
+        for (int i = 0; i < order.length; i++) {
+            assertTrue("placed twice: " + order[i], !seen[order[i]]);
+            seen[order[i]] = true;
+            positions[order[i]] = i;
+        }
+        return positions;
+    }
+
+    private static void assertBefore(Hull hull, int[] positions, int supportX, int supportY, int supportZ,
+                                     int x, int y, int z) {
+        int support = hull.indexOf(supportX, supportY, supportZ);
+        int dependent = hull.indexOf(x, y, z);
+        assertTrue(support != -1 && dependent != -1);
+        assertTrue("(" + supportX + ", " + supportY + ", " + supportZ + ") placed after (" + x + ", " + y +
+                ", " + z + ")", positions[support] < positions[dependent]);
+    }
+}
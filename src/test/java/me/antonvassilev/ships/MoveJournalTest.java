@@ -0,0 +1,474 @@
+package me.antonvassilev.ships;
+
+import net.minecraft.SharedConstants;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.StairBlock;
+import net.minecraft.world.level.block.state.BlockState;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MoveJournalTest {
+    private static final Logger LOGGER = Logger.getLogger(MoveJournalTest.class.getName());
+    private static final UUID WORLD = new UUID(1, 1);
+    private static final UUID OTHER_WORLD = new UUID(2, 2);
+    private static final String[] PALETTE = {"minecraft:oak_planks", "minecraft:stone"};
+    private static final long[] POSITIONS = {
+            BlockPos.asLong(0, 0, 0), BlockPos.asLong(1, 0, 0), BlockPos.asLong(2, 0, 0)
+    };
+    private static final int[] STATE_IDS = {0, 0, 1};
+    private static final Int2ObjectMap<CompoundTag> NO_ENTITIES = Int2ObjectMaps.emptyMap();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @BeforeClass
+    public static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "journal.dat");
+    }
+
+    @Test
+    public void recordsReadBackAsWritten() {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        long moved = journal.begin(hullId, WORLD, 0, 64, 0, 5, 64, 0, 0, NO_ENTITIES);
+        journal.commit(moved);
+        long turning = journal.begin(hullId, WORLD, 5, 64, 0, 5, 64, 0, -1, NO_ENTITIES);
+        journal.close();
+
+        List<MoveJournal.Operation> ops = reopen();
+        assertEquals(2, ops.size());
+        MoveJournal.Operation move = ops.get(0);
+        assertEquals(moved, move.id);
+        assertEquals(WORLD, move.worldId);
+        assertTrue(move.committed);
+        assertEquals(0, move.fromX);
+        assertEquals(64, move.fromY);
+        assertEquals(5, move.toX);
+        assertEquals(0, move.sinFactor);
+        assertEquals("Argo", move.hull.name);
+        assertArrayEquals(PALETTE, move.hull.palette);
+        assertArrayEquals(POSITIONS, move.hull.positions);
+        assertArrayEquals(STATE_IDS, move.hull.stateIds);
+
+        MoveJournal.Operation turn = ops.get(1);
+        assertEquals(turning, turn.id);
+        assertFalse(turn.committed);
+        assertEquals(-1, turn.sinFactor);
+        assertSame(move.hull, turn.hull);
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndAppendedOver() throws IOException {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        journal.commit(journal.begin(hullId, WORLD, 0, 64, 0, 1, 64, 0, 0, NO_ENTITIES));
+        journal.close();
+        long length = file.length();
+        // A record cut short by a crash: its length runs past the end of the file.
+        Files.write(file.toPath(), new byte[]{0, 0, 0, 40, 2, 0, 0, 0}, StandardOpenOption.APPEND);
+
+        journal = new MoveJournal(file, LOGGER);
+        assertEquals(1, journal.load().size());
+        assertEquals(length, file.length());
+        journal.begin(hullId, WORLD, 1, 64, 0, 2, 64, 0, 0, NO_ENTITIES);
+        journal.close();
+
+        assertEquals(2, reopen().size());
+    }
+
+    @Test
+    public void saveDoesNotResolveCommitsUntilTheNextSave() {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        journal.commit(journal.begin(hullId, WORLD, 0, 64, 0, 1, 64, 0, 0, NO_ENTITIES));
+        // The chunks of the move may still be being written.
+        journal.saveStarted(WORLD);
+        journal.close();
+
+        assertEquals(1, reopen().size());
+    }
+
+    @Test
+    public void checkpointResolvesCommitsBeforeThePreviousSave() {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        journal.commit(journal.begin(hullId, WORLD, 0, 64, 0, 1, 64, 0, 0, NO_ENTITIES));
+        journal.saveStarted(WORLD);
+        long afterSave = journal.begin(hullId, WORLD, 1, 64, 0, 2, 64, 0, 0, NO_ENTITIES);
+        journal.commit(afterSave);
+        long unfinished = journal.begin(hullId, WORLD, 2, 64, 0, 3, 64, 0, 0, NO_ENTITIES);
+        long otherWorld = journal.begin(hullId, OTHER_WORLD, 0, 64, 0, 1, 64, 0, 0, NO_ENTITIES);
+        journal.commit(otherWorld);
+        journal.saveStarted(WORLD);
+        journal.close();
+
+        List<MoveJournal.Operation> ops = reopen();
+        assertEquals(3, ops.size());
+        assertEquals(afterSave, ops.get(0).id);
+        assertEquals(unfinished, ops.get(1).id);
+        assertEquals(otherWorld, ops.get(2).id);
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveRecords() {
+        // Hull records of a few hundred kilobytes, so that the journal outgrows the
+        // compaction threshold within a few moves.
+        int size = 20000;
+        long[] positions = new long[size];
+        int[] stateIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = BlockPos.asLong(i % 100, i / 10000, (i / 100) % 100);
+            stateIds[i] = i % 2;
+        }
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long written = 0;
+        long last = 0;
+        for (int move = 0; move < 10; move++) {
+            long hullId = journal.journalHull("Argo", PALETTE, positions, stateIds);
+            last = journal.begin(hullId, WORLD, move, 64, 0, move + 1, 64, 0, 0, NO_ENTITIES);
+            journal.commit(last);
+            journal.saveStarted(WORLD);
+            written += size * 12L;
+        }
+        journal.close();
+
+        assertTrue(file.length() < written / 2);
+        List<MoveJournal.Operation> ops = reopen();
+        assertEquals(1, ops.size());
+        assertEquals(last, ops.get(0).id);
+        assertArrayEquals(positions, ops.get(0).hull.positions);
+    }
+
+    @Test
+    public void redoMovesTheHullOnce() {
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState stone = Blocks.STONE.defaultBlockState();
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(0, 64, 0, planks);
+        world.setBlockState(1, 64, 0, planks);
+        world.setBlockState(2, 64, 0, stone);
+        MoveJournal.Operation op = journalOne(2, 0);
+        VesselStore.Record record = record(0);
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        assertTrue(journal.redo(op, record, new BlockState[]{planks, stone}, world, new BlockWriteEngine(world)));
+        assertSame(BlockWriteEngine.AIR, world.getBlockState(0, 64, 0));
+        assertSame(BlockWriteEngine.AIR, world.getBlockState(1, 64, 0));
+        assertSame(planks, world.getBlockState(2, 64, 0));
+        assertSame(planks, world.getBlockState(3, 64, 0));
+        assertSame(stone, world.getBlockState(4, 64, 0));
+        assertEquals(2, record.originX);
+
+        // Redone again, as after a second crash: the world and the record stay as they are.
+        assertFalse(journal.redo(op, record, new BlockState[]{planks, stone}, world, new BlockWriteEngine(world)));
+        assertEquals(3, world.size());
+        assertEquals(2, record.originX);
+        journal.close();
+    }
+
+    @Test
+    public void redoKeepsBlocksPlacedWhereTheHullWas() {
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState stone = Blocks.STONE.defaultBlockState();
+        BlockState dirt = Blocks.DIRT.defaultBlockState();
+        // Saved after the move, after which a block was placed where the hull started.
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(0, 64, 0, dirt);
+        world.setBlockState(5, 64, 0, planks);
+        world.setBlockState(6, 64, 0, planks);
+        world.setBlockState(7, 64, 0, stone);
+        MoveJournal.Operation op = journalOne(5, 0);
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        journal.redo(op, null, new BlockState[]{planks, stone}, world, new BlockWriteEngine(world));
+        assertSame(dirt, world.getBlockState(0, 64, 0));
+        assertSame(planks, world.getBlockState(5, 64, 0));
+        assertSame(stone, world.getBlockState(7, 64, 0));
+        assertEquals(4, world.size());
+        journal.close();
+    }
+
+    @Test
+    public void redoTurnsTheHullAndItsStates() {
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState stairs = Blocks.OAK_STAIRS.defaultBlockState().setValue(StairBlock.FACING, Direction.NORTH);
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(0, 64, 0, planks);
+        world.setBlockState(1, 64, 0, planks);
+        world.setBlockState(2, 64, 0, stairs);
+        MoveJournal.Operation op = journalOne(0, 1);
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        journal.redo(op, null, new BlockState[]{planks, stairs}, world, new BlockWriteEngine(world));
+        assertSame(planks, world.getBlockState(0, 64, 0));
+        assertSame(planks, world.getBlockState(0, 64, 1));
+        assertEquals(Direction.EAST, world.getBlockState(0, 64, 2).getValue(StairBlock.FACING));
+        assertSame(BlockWriteEngine.AIR, world.getBlockState(1, 64, 0));
+        assertSame(BlockWriteEngine.AIR, world.getBlockState(2, 64, 0));
+        journal.close();
+    }
+
+    @Test
+    public void abortedOperationIsDropped() {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        long aborted = journal.begin(hullId, WORLD, 0, 64, 0, 1, 64, 0, 0, NO_ENTITIES);
+        long kept = journal.begin(hullId, WORLD, 0, 64, 0, 2, 64, 0, 0, NO_ENTITIES);
+        journal.abort(aborted);
+        journal.close();
+
+        List<MoveJournal.Operation> ops = reopen();
+        assertEquals(1, ops.size());
+        assertEquals(kept, ops.get(0).id);
+    }
+
+    @Test
+    public void replayRollsBackWhileTheSourceHoldsTheHull() {
+        // Saved before the move wrote anything, with a chest in the hull. Redoing it would
+        // clear the chest and write an empty one at the destination.
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState chest = Blocks.CHEST.defaultBlockState();
+        CountingBlockAccess world = new CountingBlockAccess();
+        world.setBlockState(0, 64, 0, planks);
+        world.setBlockState(1, 64, 0, planks);
+        world.setBlockState(2, 64, 0, chest);
+        world.writes = 0;
+        MoveJournal.Operation op = journalOne(2, 0);
+        // The store had already caught up with the move.
+        VesselStore.Record record = record(2);
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        assertTrue(journal.replay(Collections.singletonList(op), record,
+                Collections.singletonList(new BlockState[]{planks, chest}), world, new BlockWriteEngine(world)));
+        assertTrue(op.rolledBack);
+        assertEquals(0, world.writes);
+        assertSame(chest, world.getBlockState(2, 64, 0));
+        assertEquals(3, world.size());
+        assertEquals(0, record.originX);
+        journal.close();
+    }
+
+    @Test
+    public void replayRedoesUpToTheFirstOperationStillWhole() {
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState stone = Blocks.STONE.defaultBlockState();
+        BlockState[] palette = {planks, stone};
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        journal.commit(journal.begin(hullId, WORLD, 0, 64, 0, 2, 64, 0, 0, NO_ENTITIES));
+        journal.commit(journal.begin(hullId, WORLD, 2, 64, 0, 4, 64, 0, 0, NO_ENTITIES));
+        journal.begin(hullId, WORLD, 4, 64, 0, 6, 64, 0, 0, NO_ENTITIES);
+        journal.close();
+        List<MoveJournal.Operation> chain = reopen();
+        List<BlockState[]> palettes = Arrays.asList(palette, palette, palette);
+
+        // Saved after the first move: the second and third are rolled back.
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(2, 64, 0, planks);
+        world.setBlockState(3, 64, 0, planks);
+        world.setBlockState(4, 64, 0, stone);
+        VesselStore.Record record = record(6);
+
+        journal = new MoveJournal(file, LOGGER);
+        assertTrue(journal.replay(chain, record, palettes, world, new BlockWriteEngine(world)));
+        assertFalse(chain.get(0).rolledBack);
+        assertTrue(chain.get(1).rolledBack);
+        assertTrue(chain.get(2).rolledBack);
+        assertEquals(2, record.originX);
+        assertSame(planks, world.getBlockState(2, 64, 0));
+        assertSame(stone, world.getBlockState(4, 64, 0));
+        assertEquals(3, world.size());
+        journal.close();
+    }
+
+    @Test
+    public void rollBackTurnsTheRecordBack() {
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState stone = Blocks.STONE.defaultBlockState();
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(0, 64, 0, planks);
+        world.setBlockState(1, 64, 0, planks);
+        world.setBlockState(2, 64, 0, stone);
+        MoveJournal.Operation op = journalOne(0, 1);
+        // The record as the turn left it: (x, z) went to (-z, x).
+        VesselStore.Record record = record(0);
+        record.positions = new long[]{BlockPos.asLong(0, 0, 0), BlockPos.asLong(0, 0, 1), BlockPos.asLong(0, 0, 2)};
+        record.engineSignOffset = BlockPos.asLong(0, 1, 2);
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        assertTrue(journal.replay(Collections.singletonList(op), record,
+                Collections.singletonList(new BlockState[]{planks, stone}), world, new BlockWriteEngine(world)));
+        assertArrayEquals(POSITIONS, record.positions);
+        assertEquals(BlockPos.asLong(2, 1, 0), (long) record.engineSignOffset);
+        assertSame(stone, world.getBlockState(2, 64, 0));
+        journal.close();
+    }
+
+    @Test
+    public void blockEntityDataReadsBackAsWritten() {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        journal.begin(hullId, WORLD, 0, 64, 0, 1, 64, 0, 0, Int2ObjectMaps.singleton(2, chestData("Cargo")));
+        journal.close();
+
+        MoveJournal.Operation op = reopen().get(0);
+        assertEquals(1, op.blockEntities.size());
+        assertEquals(chestData("Cargo"), op.blockEntities.get(2));
+    }
+
+    @Test
+    public void rollBackPutsBlockEntityDataBackAtTheSource() {
+        // Saved after the chest was taken out of the world, before any block was written.
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState chest = Blocks.CHEST.defaultBlockState();
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(0, 64, 0, planks);
+        world.setBlockState(1, 64, 0, planks);
+        world.setBlockState(2, 64, 0, chest);
+        MoveJournal.Operation op = journalOne(2, false, chestData("Cargo"));
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        journal.replay(Collections.singletonList(op), null,
+                Collections.singletonList(new BlockState[]{planks, chest}), world, new BlockWriteEngine(world));
+        assertTrue(op.rolledBack);
+        assertEquals(chestData("Cargo"), world.getBlockEntityData(2, 64, 0));
+        assertNull(world.getBlockEntityData(4, 64, 0));
+        journal.close();
+    }
+
+    @Test
+    public void redoPutsBlockEntityDataBackAtTheDestination() {
+        // Saved halfway through the move: the source is cleared, the chest written empty.
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState chest = Blocks.CHEST.defaultBlockState();
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(4, 64, 0, chest);
+        MoveJournal.Operation op = journalOne(2, false, chestData("Cargo"));
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        journal.redo(op, null, new BlockState[]{planks, chest}, world, new BlockWriteEngine(world));
+        assertSame(planks, world.getBlockState(2, 64, 0));
+        assertEquals(chestData("Cargo"), world.getBlockEntityData(4, 64, 0));
+        journal.close();
+    }
+
+    @Test
+    public void redoOfACommittedMoveKeepsBlockEntitiesInPlace() {
+        // Saved after the move, once the chest had been put back and filled some more.
+        BlockState planks = Blocks.OAK_PLANKS.defaultBlockState();
+        BlockState chest = Blocks.CHEST.defaultBlockState();
+        MemoryBlockAccess world = new MemoryBlockAccess(-64, 320);
+        world.setBlockState(3, 64, 0, planks);
+        world.setBlockState(4, 64, 0, chest);
+        world.setBlockEntityData(4, 64, 0, chestData("More cargo"));
+        MoveJournal.Operation op = journalOne(2, true, chestData("Cargo"));
+
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        journal.redo(op, null, new BlockState[]{planks, chest}, world, new BlockWriteEngine(world));
+        assertSame(planks, world.getBlockState(2, 64, 0));
+        assertEquals(chestData("More cargo"), world.getBlockEntityData(4, 64, 0));
+
+        // Where the redo has to write the chest again, the journalled data goes into it.
+        world.setBlockState(4, 64, 0, BlockWriteEngine.AIR);
+        journal.redo(op, null, new BlockState[]{planks, chest}, world, new BlockWriteEngine(world));
+        assertEquals(chestData("Cargo"), world.getBlockEntityData(4, 64, 0));
+        journal.close();
+    }
+
+    // Journals an operation moving the test hull, with a chest for its third block, from
+    // (0, 64, 0) by dx along with the chest's data, and reads it back.
+    private MoveJournal.Operation journalOne(int dx, boolean committed, CompoundTag chest) {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", new String[]{"minecraft:oak_planks", "minecraft:chest"},
+                POSITIONS, STATE_IDS);
+        long op = journal.begin(hullId, WORLD, 0, 64, 0, dx, 64, 0, 0, Int2ObjectMaps.singleton(2, chest));
+        if (committed) {
+            journal.commit(op);
+        }
+        journal.close();
+        return reopen().get(0);
+    }
+
+    private static CompoundTag chestData(String name) {
+        CompoundTag tag = new CompoundTag();
+        tag.putString("CustomName", "{\"text\":\"" + name + "\"}");
+        return tag;
+    }
+
+    // Journals an unfinished operation moving the test hull from (0, 64, 0) by dx and
+    // turning it by sinFactor, and reads it back.
+    private MoveJournal.Operation journalOne(int dx, int sinFactor) {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        long hullId = journal.journalHull("Argo", PALETTE, POSITIONS, STATE_IDS);
+        journal.begin(hullId, WORLD, 0, 64, 0, dx, 64, 0, sinFactor, NO_ENTITIES);
+        journal.close();
+        return reopen().get(0);
+    }
+
+    private static VesselStore.Record record(int originX) {
+        VesselStore.Record record = new VesselStore.Record("Argo", WORLD);
+        record.originX = originX;
+        record.originY = 64;
+        record.palette = PALETTE;
+        record.positions = POSITIONS;
+        record.stateIds = STATE_IDS;
+        return record;
+    }
+
+    private List<MoveJournal.Operation> reopen() {
+        MoveJournal journal = new MoveJournal(file, LOGGER);
+        List<MoveJournal.Operation> ops = journal.load();
+        journal.close();
+        return ops;
+    }
+
+    // Counts the writes that reach it.
+    private static class CountingBlockAccess extends MemoryBlockAccess {
+        int writes = 0;
+
+        CountingBlockAccess() {
+            super(-64, 320);
+        }
+
+        @Override
+        public void setBlockState(int x, int y, int z, BlockState state) {
+            writes++;
+            super.setBlockState(x, y, z, state);
+        }
+    }
+}